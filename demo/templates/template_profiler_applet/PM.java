@@ -1,29 +1,72 @@
-package jcprofiler; // TODO: change to your applet package 
+package jcprofiler; // TODO: change to your applet package
 
+import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
 
 /**
- * Utility class for performance profiling. Contains currently set trap stop and trap reaction method. 
+ * Utility class for performance profiling. Contains currently set trap stop and trap reaction method.
  * @author Petr Svenda
  */
 public class PM {
     public static short m_perfStop = -1; // Performace measurement stop indicator
+    // [0] = number of hits of m_perfStop remaining until exception is thrown (hit-count traps in loops)
+    // kept in RAM (transient array allocated once by setStopHit), so passing the trap does not write EEPROM
+    public static short[] m_perfStopHit = null;
 
     // if m_perfStop equals to stopCondition, exception is throws (trap hit)
-    public static void check(short stopCondition) { 
+    // if m_perfStopHit[0] > 1, trap is passed (m_perfStopHit[0] - 1) times before exception is thrown
+    public static void check(short stopCondition) {
         if (PM.m_perfStop == stopCondition) {
-            ISOException.throwIt(stopCondition);
+            if (PM.m_perfStopHit == null || PM.m_perfStopHit[0] <= 1) {
+                ISOException.throwIt(stopCondition);
+            }
+            PM.m_perfStopHit[0]--;
+        }
+    }
+
+    // sets number of hits of m_perfStop until exception is thrown, transient counter is allocated on first call
+    public static void setStopHit(short hits) {
+        if (PM.m_perfStopHit == null) {
+            PM.m_perfStopHit = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_RESET);
+        }
+        PM.m_perfStopHit[0] = hits;
+    }
+
+    // single-APDU arming: if apdu is the profiled trigger command, trapID is taken from its P1/P2
+    // P1/P2 == 0 keeps trap set by INS_PERF_SETSTOP (two-APDU protocol, hit-count traps)
+    public static void arm(byte[] apdubuf, byte triggerIns) {
+        if (apdubuf[ISO7816.OFFSET_INS] == triggerIns) {
+            short stop = Util.makeShort(apdubuf[ISO7816.OFFSET_P1], apdubuf[ISO7816.OFFSET_P2]);
+            if (stop != 0) {
+                PM.m_perfStop = stop;
+                PM.setStopHit((short) 1);
+            }
         }
     }
 
 }
 
-!!! TODO: Move code below into your main applet class into process() method. 
-If INS value 0xf5 is already taken, change it to any other, but don't forget 
-to modify correspondingly also the value of JCProfiler_client.PerfTests.INS_PERF_SETTRAPID 
-// ----- begin of code to be moved 
+/*
+!!! TODO: Move code below into your main applet class into process() method.
+If INS value 0xf5 is already taken, change it to any other, but don't forget
+to modify correspondingly also the value of JCProfiler_client.PerfTests.INS_PERF_SETTRAPID
+// ----- begin of code to be moved
 public final static byte INS_PERF_SETSTOP           = (byte) 0xf5;
 case INS_PERF_SETSTOP:
     PM.m_perfStop = Util.makeShort(apdubuf[ISO7816.OFFSET_CDATA], apdubuf[(short) (ISO7816.OFFSET_CDATA + 1)]);
+    PM.setStopHit((apdubuf[ISO7816.OFFSET_LC] >= 4) ? Util.makeShort(apdubuf[(short) (ISO7816.OFFSET_CDATA + 2)], apdubuf[(short) (ISO7816.OFFSET_CDATA + 3)]) : (short) 1);
+    PM.check(PMC.TRAP_CALIB_1); // empty trap pair used by client for calibration of measurement overhead
+    PM.check(PMC.TRAP_CALIB_2);
     break;
-// ----- end of code to be moved 
+// ----- end of code to be moved
+
+(Optional) Single-APDU arming: trapID is sent in P1/P2 of the trigger command itself,
+so only one APDU per measurement is needed. Use only if your trigger command ignores P1/P2,
+set INS_PERF_TRIGGER to INS of the profiled command and set JCProfiler_client.PerfTests.PERF_SINGLE_APDU to true.
+// ----- begin of code to be moved (before the switch on INS)
+public final static byte INS_PERF_TRIGGER           = (byte) 0x40;
+PM.arm(apdubuf, INS_PERF_TRIGGER);
+// ----- end of code to be moved
+*/
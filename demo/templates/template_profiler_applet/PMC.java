@@ -9,6 +9,10 @@ public class PMC {
             
     public static final short TRAP_UNDEFINED 	= (short) 0xffff;
 
+    // empty trap pair in INS_PERF_SETSTOP handler used for calibration of measurement overhead
+    public static final short TRAP_CALIB_1      = (short) 0x7ff1;
+    public static final short TRAP_CALIB_2      = (short) 0x7ff2;
+
 //### PLACEHOLDER PMC CONSTANTS
 
 }
@@ -0,0 +1,198 @@
+package jcprofiler;
+
+import java.io.PrintStream;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * Asynchronous APDU trace. Transmitted commands are only stored into preallocated ring buffer,
+ * formatting and printing is performed by background drain thread. The thread is suspended
+ * between pause() and resume() (while transmit is timed), so that neither console output nor
+ * trace formatting runs during measurement. If ring buffer is full, entries are dropped (and counted).
+ */
+public class ApduTrace {
+    public enum Level {
+        OFF,    // nothing is printed
+        INFO,   // status word and time of every command
+        TRACE   // full command and response data
+    }
+
+    static final int DEFAULT_CAPACITY = 1024; // must be power of two
+
+    static class Entry {
+        CommandAPDU cmd;
+        ResponseAPDU response;
+        long timeNs;
+    }
+
+    private final Entry[] ring;
+    private final int mask;
+    private long head = 0; // next entry to write
+    private long tail = 0; // next entry to print
+    private Level level;
+    private long dropped = 0;
+    private final PrintStream out;
+    private final Object lock = new Object(); // guards ring buffer indexes and flags
+    private boolean bPaused = false;
+    private boolean bPrinting = false; // drain thread prints entry at tail
+    private Thread drainThread = null;
+
+    public ApduTrace(Level level) {
+        this(level, DEFAULT_CAPACITY, System.out);
+    }
+
+    public ApduTrace(Level level, int capacity, PrintStream out) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be power of two: " + capacity);
+        }
+        this.ring = new Entry[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Entry();
+        }
+        this.mask = capacity - 1;
+        this.level = level;
+        this.out = out;
+    }
+
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Suspends drain thread before transmit is timed, waits until entry currently printed is finished.
+     */
+    public void pause() {
+        if (level == Level.OFF) {
+            return;
+        }
+        synchronized (lock) {
+            bPaused = true;
+            awaitPrinted();
+        }
+    }
+
+    /**
+     * Resumes drain thread after timed transmit.
+     */
+    public void resume() {
+        synchronized (lock) {
+            if (bPaused) {
+                bPaused = false;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Records transmitted command, nothing is printed. Called from single (transmitting) thread only.
+     */
+    public void log(CommandAPDU cmd, ResponseAPDU response, long timeNs) {
+        if (level == Level.OFF) {
+            return;
+        }
+        synchronized (lock) {
+            if (head - tail >= ring.length) {
+                dropped++;
+                return;
+            }
+            Entry entry = ring[(int) (head & mask)];
+            entry.cmd = cmd;
+            entry.response = response;
+            entry.timeNs = timeNs;
+            head++;
+            if (drainThread == null) {
+                drainThread = new Thread(this::drainLoop, "apdu-trace");
+                drainThread.setDaemon(true);
+                drainThread.start();
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private void drainLoop() {
+        while (true) {
+            Entry entry;
+            synchronized (lock) {
+                while (drainThread == Thread.currentThread() && (bPaused || tail == head)) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (drainThread != Thread.currentThread()) {
+                    return;
+                }
+                entry = ring[(int) (tail & mask)];
+                bPrinting = true;
+            }
+            // printed without lock, so that log() is not blocked, pause() waits until entry is finished
+            print(entry);
+            synchronized (lock) {
+                releaseTail(entry);
+                bPrinting = false;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    // waits until drain thread finishes entry being printed, lock must be held
+    private void awaitPrinted() {
+        boolean bInterrupted = false;
+        while (bPrinting) {
+            try {
+                lock.wait();
+            } catch (InterruptedException e) {
+                bInterrupted = true;
+            }
+        }
+        if (bInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void releaseTail(Entry entry) {
+        entry.cmd = null;
+        entry.response = null;
+        tail++;
+    }
+
+    /**
+     * Prints all remaining entries and number of dropped ones in calling thread, stops drain thread.
+     */
+    public void flush() {
+        synchronized (lock) {
+            drainThread = null;
+            lock.notifyAll();
+            awaitPrinted();
+            while (tail < head) {
+                Entry entry = ring[(int) (tail & mask)];
+                print(entry);
+                releaseTail(entry);
+            }
+            if (dropped > 0) {
+                out.printf("WARNING: %d APDU trace entries dropped (trace buffer full)\n", dropped);
+                dropped = 0;
+            }
+        }
+        out.flush();
+    }
+
+    private void print(Entry entry) {
+        double timeMs = entry.timeNs / 1000000.0;
+        String swStr = String.format("%02X", entry.response.getSW());
+        if (level == Level.TRACE) {
+            out.printf("--> %s\n", CardManager.toHex(entry.cmd.getBytes()));
+            byte[] data = entry.response.getData();
+            if (data.length > 0) {
+                out.printf("<-- %s %s (%d) [%.3f ms]\n", CardManager.toHex(data), swStr, data.length, timeMs);
+                return;
+            }
+        }
+        out.printf("<-- %s [%.3f ms]\n", swStr, timeMs);
+    }
+}
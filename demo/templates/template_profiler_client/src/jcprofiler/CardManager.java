@@ -1,6 +1,8 @@
 package jcprofiler;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import javax.smartcardio.*;
 
 /**
@@ -8,17 +10,18 @@ import javax.smartcardio.*;
  * @author Petr Svenda
  */
 public class CardManager {
-    CardTerminal m_terminal = null;
-    CardChannel m_channel = null;
-    Card m_card = null;
-    Long m_lastTransmitTime = (long) 0;
+    CardTransport m_transport = null;   // physical card (PcscTransport) or SimulatedCard
+    long m_lastTransmitTime = 0;    // duration of last transmit (ms)
+    long m_lastTransmitTimeNs = 0;  // duration of last transmit (ns)
+    ApduTrace m_trace = new ApduTrace(ApduTrace.Level.OFF);
+    int m_cardIndex = 0;            // index of card in fleet (multiple readers)
     
     public final static byte OFFSET_CDATA = 5;
     public final static short SW_NO_ERROR = (short) 0x9000;
 
     public boolean ConnectToCard(byte[] appletAID) throws Exception {
         // Try all readers, connect to fisrt card
-        List terminalList = GetReaderList();
+        List<CardTerminal> terminalList = GetReaderList();
 
         if (terminalList.isEmpty()) {
             System.out.println("No terminals found");
@@ -27,20 +30,9 @@ public class CardManager {
         //List numbers of Card readers
         for (int i = 0; i < terminalList.size(); i++) {
             System.out.println(i + " : " + terminalList.get(i));
-            m_terminal = (CardTerminal) terminalList.get(i);
-            if (m_terminal.isCardPresent()) {
-                m_card = m_terminal.connect("*");
-                System.out.println("card: " + m_card);
-                m_channel = m_card.getBasicChannel();
-
-                //reset the card
-                ATR atr = m_card.getATR();
-                System.out.println(bytesToHex(m_card.getATR().getBytes()));
-                
-                System.out.println("Selecting applet...");
-                CommandAPDU cmd = new CommandAPDU(0x00, 0xa4, 0x04, 0x00, appletAID);
-                ResponseAPDU response = transmit(cmd);
-                
+            CardTerminal terminal = terminalList.get(i);
+            if (terminal.isCardPresent()) {
+                ConnectToTerminal(terminal, appletAID);
                 return true;
             }
         }
@@ -48,17 +40,62 @@ public class CardManager {
         return false;
     }
 
+    /**
+     * Connects to every reader with card present (fleet of identical cards).
+     * @return list of connected managers, m_cardIndex is set to order of the card in the list
+     */
+    public static ArrayList<CardManager> ConnectToAllCards(byte[] appletAID) throws Exception {
+        ArrayList<CardManager> fleet = new ArrayList<>();
+        List<CardTerminal> terminalList = new CardManager().GetReaderList();
+        for (int i = 0; i < terminalList.size(); i++) {
+            CardTerminal terminal = terminalList.get(i);
+            if (terminal.isCardPresent()) {
+                System.out.println(i + " : " + terminal);
+                CardManager cardMngr = new CardManager();
+                cardMngr.m_cardIndex = fleet.size();
+                cardMngr.ConnectToTerminal(terminal, appletAID);
+                fleet.add(cardMngr);
+            }
+        }
+        if (fleet.isEmpty()) {
+            System.out.println("No cards found");
+        }
+        return fleet;
+    }
+
+    public void ConnectToTerminal(CardTerminal terminal, byte[] appletAID) throws Exception {
+        ConnectToTransport(new PcscTransport(terminal), appletAID);
+    }
+
+    /**
+     * Connects to in-process simulated card, measured times are given by its cost model.
+     */
+    public void ConnectToSimulator(SimulatedCard simulator, byte[] appletAID) throws Exception {
+        ConnectToTransport(simulator, appletAID);
+    }
+
+    public void ConnectToTransport(CardTransport transport, byte[] appletAID) throws Exception {
+        m_transport = transport;
+        System.out.println("card: " + m_transport.getName());
+        System.out.println(bytesToHex(m_transport.getATR()));
+
+        System.out.println("Selecting applet...");
+        CommandAPDU cmd = new CommandAPDU(0x00, 0xa4, 0x04, 0x00, appletAID);
+        ResponseAPDU response = transmit(cmd);
+    }
+
     public void DisconnectFromCard() throws Exception {
-        if (m_card != null) {
-            m_card.disconnect(false);
-            m_card = null;
+        m_trace.flush();
+        if (m_transport != null) {
+            m_transport.disconnect();
+            m_transport = null;
         }
     }
     
-    public List GetReaderList() {
+    public List<CardTerminal> GetReaderList() {
         try {
             TerminalFactory factory = TerminalFactory.getDefault();
-            List readersList = factory.terminals().list();
+            List<CardTerminal> readersList = factory.terminals().list();
             return readersList;
         } catch (Exception ex) {
             System.out.println("Exception : " + ex);
@@ -67,34 +104,27 @@ public class CardManager {
     }
     
     public ResponseAPDU transmit(CommandAPDU cmd) throws CardException {
-        log(cmd);
-
-        long elapsed = -System.currentTimeMillis();
-        ResponseAPDU response = m_channel.transmit(cmd);
-        elapsed += System.currentTimeMillis();
-        m_lastTransmitTime = elapsed;
+        m_trace.pause(); // trace of previous commands is not printed while clock runs
+        long start;
+        long end;
+        ResponseAPDU response;
+        try {
+            // nothing except transmit itself is allowed between the two clock reads
+            start = System.nanoTime();
+            response = m_transport.transmit(cmd);
+            end = System.nanoTime();
+        } finally {
+            m_trace.resume();
+        }
 
-        log(response, m_lastTransmitTime);
+        long simulatedTime = m_transport.getSimulatedTime();
+        m_lastTransmitTimeNs = (simulatedTime >= 0) ? simulatedTime : end - start;
+        m_lastTransmitTime = TimeUnit.NANOSECONDS.toMillis(m_lastTransmitTimeNs);
+        m_trace.log(cmd, response, m_lastTransmitTimeNs); // formatted and printed by drain thread of trace
 
         return response;
     }
 
-    private void log(CommandAPDU cmd) {
-        System.out.printf("--> %s\n", toHex(cmd.getBytes()),
-                cmd.getBytes().length);
-    }
-
-    private void log(ResponseAPDU response, long time) {
-        String swStr = String.format("%02X", response.getSW());
-        byte[] data = response.getData();
-        if (data.length > 0) {
-            System.out.printf("<-- %s %s (%d) [%d ms]\n", toHex(data), swStr,
-                    data.length, time);
-        } else {
-            System.out.printf("<-- %s [%d ms]\n", swStr, time);
-        }
-    }
-    
     public String byteToHex(byte data) {
         StringBuilder buf = new StringBuilder();
         buf.append(toHexChar((data >>> 4) & 0x0F));
@@ -134,13 +164,15 @@ public class CardManager {
         return toHex(bytes, 0, bytes.length);
     }
 
-    public static String toHex(byte[] bytes, int offset, int len) {
-        String result = "";
+    private static final char[] HEX_CHARS = "0123456789ABCDEF".toCharArray();
 
-        for (int i = offset; i < offset + len; i++) {
-            result += String.format("%02X", bytes[i]);
+    public static String toHex(byte[] bytes, int offset, int len) {
+        char[] result = new char[len * 2];
+        for (int i = 0; i < len; i++) {
+            int b = bytes[offset + i] & 0xff;
+            result[2 * i] = HEX_CHARS[b >>> 4];
+            result[2 * i + 1] = HEX_CHARS[b & 0x0f];
         }
-
-        return result;
+        return new String(result);
     }    
 }
@@ -0,0 +1,24 @@
+package jcprofiler;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * Transport of APDU commands to card used by CardManager (physical card via PC/SC or simulator).
+ */
+public interface CardTransport {
+    String getName();
+
+    byte[] getATR();
+
+    ResponseAPDU transmit(CommandAPDU cmd) throws CardException;
+
+    void disconnect() throws CardException;
+
+    /**
+     * @return duration (ns) of last command given by transport itself (simulated card),
+     * -1 if duration is measured by host clock
+     */
+    long getSimulatedTime();
+}
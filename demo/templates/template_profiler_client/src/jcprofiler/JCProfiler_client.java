@@ -1,10 +1,13 @@
 package jcprofiler;
 
+import java.util.Locale;
 
 /**
  * @author Petr Svenda
  */
 public class JCProfiler_client {
+    private int numRepeats = 1;
+    private String exportLog = null; // binary session log to export, no measurement is performed
 
     public static void main(String[] args) {
         JCProfiler_client app = new JCProfiler_client();
@@ -14,11 +17,80 @@ public class JCProfiler_client {
     private void run(String[] args) {
         System.out.println("JCProfiler v1.0 by OpenCryptoProject, 2017");
         try {
+            parseArgs(args);
+            if (exportLog != null) {
+                PerfTests.ExportSessionLog(exportLog);
+                return;
+            }
             PerfTests perfTests = new PerfTests();
-            perfTests.RunPerformanceTests(1, true);
+            perfTests.RunPerformanceTests(numRepeats, true);
         } catch (Exception ex) {
             System.out.println("Exception : " + ex);
         }
     }
 
+    /**
+     * Supported arguments:
+     *   --simulator [script] [costs]  run against in-process simulated card (ScriptedApplet with optional
+     *                                 script and cost model properties file) instead of physical card
+     *   --simulator-applet class      SimulatedApplet implementation to run on simulator
+     *   --trap-map file               trap source map of generator used for annotation of applet files
+     *   --applet-dir dir              directory with generated applet files to annotate (default from trap map)
+     *   --order name                  order of traps in repetitions: ASCENDING, RANDOM, LATIN_SQUARE or PAIRED
+     *   --seed number                 seed of trap ordering (reproducible session)
+     *   --repeats count               number of repetitions of sweep over traps (default 1)
+     *   --ci-width ms                 target width of confidence interval of segments re-measured adaptively (0 = no adaptive re-measurement)
+     *   --trace level                 APDU trace printed to console: OFF (default), INFO or TRACE
+     *   --resume experimentID         continue interrupted session (reconnects to card, loads OC_PERF_state_id.txt and OC_PERF_log_id.bin)
+     *   --export log.bin              export binary session log into CSV files (OC_PERF_log_id.csv, TRAP_RAW_id.csv)
+     */
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--simulator":
+                    PerfTests.PERF_SIMULATOR = true;
+                    if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                        PerfTests.PERF_SIMULATOR_SCRIPT = args[++i];
+                    }
+                    if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                        PerfTests.PERF_SIMULATOR_COSTS = args[++i];
+                    }
+                    break;
+                case "--simulator-applet":
+                    PerfTests.PERF_SIMULATOR = true;
+                    PerfTests.PERF_SIMULATOR_APPLET = args[++i];
+                    break;
+                case "--trap-map":
+                    PerfTests.PERF_TRAP_MAP = args[++i];
+                    break;
+                case "--applet-dir":
+                    PerfTests.PERF_APPLET_DIR = args[++i];
+                    break;
+                case "--order":
+                    PerfTests.PERF_ORDER = PerfTests.TrapOrder.valueOf(args[++i].toUpperCase(Locale.ROOT));
+                    break;
+                case "--seed":
+                    PerfTests.PERF_SEED = Long.parseLong(args[++i]);
+                    break;
+                case "--repeats":
+                    numRepeats = Integer.parseInt(args[++i]);
+                    break;
+                case "--ci-width":
+                    PerfTests.PERF_CI_TARGET_WIDTH = Double.parseDouble(args[++i]);
+                    break;
+                case "--trace":
+                    PerfTests.APDU_TRACE_LEVEL = ApduTrace.Level.valueOf(args[++i].toUpperCase(Locale.ROOT));
+                    break;
+                case "--resume":
+                    PerfTests.PERF_RESUME = args[++i];
+                    break;
+                case "--export":
+                    exportLog = args[++i];
+                    break;
+                default:
+                    System.out.println("Unknown argument: " + args[i]);
+            }
+        }
+    }
+
 }
@@ -0,0 +1,48 @@
+package jcprofiler;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * Physical card connected via PC/SC reader (javax.smartcardio).
+ */
+public class PcscTransport implements CardTransport {
+    private final CardTerminal m_terminal;
+    private final Card m_card;
+    private final CardChannel m_channel;
+
+    public PcscTransport(CardTerminal terminal) throws CardException {
+        m_terminal = terminal;
+        m_card = terminal.connect("*");
+        m_channel = m_card.getBasicChannel();
+    }
+
+    @Override
+    public String getName() {
+        return m_terminal.getName() + " (" + m_card + ")";
+    }
+
+    @Override
+    public byte[] getATR() {
+        return m_card.getATR().getBytes();
+    }
+
+    @Override
+    public ResponseAPDU transmit(CommandAPDU cmd) throws CardException {
+        return m_channel.transmit(cmd);
+    }
+
+    @Override
+    public void disconnect() throws CardException {
+        m_card.disconnect(false);
+    }
+
+    @Override
+    public long getSimulatedTime() {
+        return -1;
+    }
+}
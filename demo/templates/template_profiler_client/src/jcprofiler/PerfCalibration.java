@@ -0,0 +1,93 @@
+package jcprofiler;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * Calibration of measurement overhead. The INS_PERF_SETSTOP handler on card contains empty
+ * pair of traps (PMC.TRAP_CALIB_1, PMC.TRAP_CALIB_2) directly after m_perfStop is set, so
+ * APDU_SETTRAPID itself is used to measure:
+ *  - no-op round trip (trap none): PC/SC, reader and command dispatch latency,
+ *  - TRAP_CALIB_1 hit: round trip + cost of trap hit (ISOException.throwIt) = baseline of first segment,
+ *  - TRAP_CALIB_2 hit: additionally one not-hit PM.check = overhead included in every other segment.
+ */
+public class PerfCalibration {
+    public static final short TRAP_NONE = (short) 0;
+
+    public final PerfSampleStore store = new PerfSampleStore();
+    public long transportNs = 0;      // median of no-op round trip
+    public long trapBaseNs = 0;       // median of round trip with trap hit
+    public long trapOverheadNs = 0;   // median cost of single not-hit trap
+    public long noiseFloorNs = 0;     // spread (p90 - p10) of round trip with trap hit
+    public boolean bCalibrated = false;
+
+    PerfCalibration() {
+        store.register(TRAP_NONE, PMC.PERF_START);
+        store.register(PMC.TRAP_CALIB_1, PMC.PERF_START);
+        store.register(PMC.TRAP_CALIB_2, PMC.TRAP_CALIB_1);
+    }
+
+    /**
+     * Measures calibration traps (interleaved) and computes baseline values.
+     * @return true if card supports calibration traps
+     */
+    public boolean calibrate(CardManager cardMngr, int numRepeats) throws CardException {
+        System.out.println(String.format("Calibrating measurement overhead (%d repeats)...", numRepeats));
+        for (int repeat = 0; repeat < numRepeats; repeat++) {
+            measure(cardMngr, TRAP_NONE, CardManager.SW_NO_ERROR);
+            if (!measure(cardMngr, PMC.TRAP_CALIB_1, PMC.TRAP_CALIB_1) || !measure(cardMngr, PMC.TRAP_CALIB_2, PMC.TRAP_CALIB_2)) {
+                System.out.println("WARNING: calibration traps not reached (INS_PERF_SETSTOP handler without TRAP_CALIB_x), no calibration is performed");
+                cardMngr.transmit(new CommandAPDU(PerfTests.APDU_SETTRAPID_NONE));
+                return false;
+            }
+        }
+        cardMngr.transmit(new CommandAPDU(PerfTests.APDU_SETTRAPID_NONE)); // erase calibration stop
+
+        int none = store.indexOf(TRAP_NONE);
+        int calib1 = store.indexOf(PMC.TRAP_CALIB_1);
+        int calib2 = store.indexOf(PMC.TRAP_CALIB_2);
+        transportNs = store.median(none);
+        trapBaseNs = store.median(calib1);
+        trapOverheadNs = Math.max(0, store.segmentMedian(calib2));
+        noiseFloorNs = store.p90(calib1) - store.percentile(calib1, 0.10);
+        bCalibrated = true;
+
+        System.out.println(String.format("  no-op round trip %.3f ms, trap hit round trip %.3f ms, trap overhead %.3f ms, noise floor %.3f ms",
+                PerfStats.toMillis(transportNs), PerfStats.toMillis(trapBaseNs), PerfStats.toMillis(trapOverheadNs), PerfStats.toMillis(noiseFloorNs)));
+        return true;
+    }
+
+    private boolean measure(CardManager cardMngr, short trapID, short expectedSW) throws CardException {
+        byte[] apdu = PerfTests.APDU_SETTRAPID_NONE.clone();
+        System.arraycopy(PerfTests.shortToByteArray(trapID), 0, apdu, CardManager.OFFSET_CDATA, 2);
+        ResponseAPDU response = cardMngr.transmit(new CommandAPDU(apdu));
+        if (response.getSW() != (expectedSW & 0xffff)) {
+            return false;
+        }
+        store.add(trapID, cardMngr.m_lastTransmitTimeNs);
+        return true;
+    }
+
+    /**
+     * @return measurement overhead (ns) included in segment of given trap: trap hit round trip for first segment,
+     * cost of not-hit trap for others, 0 if not calibrated
+     */
+    public long segmentOverhead(PerfSampleStore perfStore, int index) {
+        if (!bCalibrated) {
+            return 0;
+        }
+        return (perfStore.getPrevTrapID(index) == PMC.PERF_START) ? trapBaseNs : trapOverheadNs;
+    }
+
+    /**
+     * @return median time (ns) of segment with measurement overhead removed
+     */
+    public long calibratedSegment(PerfSampleStore perfStore, int index) {
+        return perfStore.segmentMedian(index) - segmentOverhead(perfStore, index);
+    }
+
+    public boolean isBelowNoiseFloor(long calibratedSegmentNs) {
+        return bCalibrated && calibratedSegmentNs < noiseFloorNs;
+    }
+}
@@ -0,0 +1,176 @@
+package jcprofiler;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * Persistent state of profiling session (OC_PERF_state_id.txt) used to resume interrupted session
+ * (JCProfiler_client --resume id). Samples itself are kept in session log, checkpoint records how many
+ * records of the log are valid, seed and order of traps, completed trap families, failed traps and number of
+ * attempts and samples of every trap (and of every occurrence of hit-count traps). Checkpoint is saved whenever
+ * session log is flushed, file is replaced atomically so crash never leaves partially written state.
+ * Resumed session requests measurements in the same order, first requests covered by attempts are replayed
+ * (their samples are loaded from log) instead of measured again.
+ */
+public class PerfCheckpoint {
+    private final String path;
+    public final String experimentID;
+    public final long seed;
+    public PerfTests.TrapOrder order = PerfTests.TrapOrder.ASCENDING; // order of traps must stay same after resume
+    public long logRecords = 0;     // records of session log covered by checkpoint
+    public final LinkedHashSet<String> completedFamilies = new LinkedHashSet<>();
+    public final LinkedHashSet<String> failedTraps = new LinkedHashSet<>();
+    private final int[] attempts = new int[0x10000]; // trapID -> number of measurements (reached or not)
+    private final int[] samples = new int[0x10000];  // trapID -> number of measurements with trap reached
+    private final int[] requests = new int[0x10000]; // trapID -> number of measurements requested in this run (not saved)
+    private final HashMap<Integer, Integer> hitAttempts = new HashMap<>(); // hitKey -> number of measurements of occurrence
+    private final HashMap<Integer, Integer> hitRequests = new HashMap<>(); // hitKey -> requested in this run (not saved)
+
+    public PerfCheckpoint(String path, String experimentID, long seed) {
+        this.path = path;
+        this.experimentID = experimentID;
+        this.seed = seed;
+    }
+
+    /**
+     * @throws IOException if checkpoint does not exist or is not valid
+     */
+    public static PerfCheckpoint load(String path) throws IOException {
+        String experimentID = null;
+        Long seed = null;
+        long logRecords = 0;
+        PerfTests.TrapOrder order = PerfTests.TrapOrder.ASCENDING;
+        ArrayList<String> lines = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] cols = line.split(" ");
+                if (line.startsWith("#")) {
+                    continue;
+                } else if (cols[0].equals("experiment") && cols.length == 2) {
+                    experimentID = cols[1];
+                } else if (cols[0].equals("seed") && cols.length == 2) {
+                    seed = Long.parseLong(cols[1]);
+                } else if (cols[0].equals("order") && cols.length == 2) {
+                    order = PerfTests.TrapOrder.valueOf(cols[1]);
+                } else if (cols[0].equals("records") && cols.length == 2) {
+                    logRecords = Long.parseLong(cols[1]);
+                } else {
+                    lines.add(line);
+                }
+            }
+        } catch (IllegalArgumentException e) { // incl. NumberFormatException
+            throw new IOException(String.format("Invalid checkpoint '%s' (%s)", path, e));
+        }
+        if (experimentID == null || seed == null) {
+            throw new IOException(String.format("Invalid checkpoint '%s' (experiment or seed missing)", path));
+        }
+        PerfCheckpoint checkpoint = new PerfCheckpoint(path, experimentID, seed);
+        checkpoint.logRecords = logRecords;
+        checkpoint.order = order;
+        for (String line : lines) {
+            String[] cols = line.split(" ");
+            if (cols[0].equals("family") && cols.length >= 2) {
+                checkpoint.completedFamilies.add(line.substring("family ".length())); // name may contain spaces
+            } else if (cols[0].equals("failed") && cols.length == 2) {
+                checkpoint.failedTraps.add(cols[1]);
+            } else if (cols[0].equals("trap") && cols.length == 4) {
+                int trapID = Integer.parseInt(cols[1], 16);
+                checkpoint.attempts[trapID] = Integer.parseInt(cols[2]);
+                checkpoint.samples[trapID] = Integer.parseInt(cols[3]);
+            } else if (cols[0].equals("hit") && cols.length == 4) {
+                checkpoint.hitAttempts.put(hitKey((short) Integer.parseInt(cols[1], 16), Integer.parseInt(cols[2])), Integer.parseInt(cols[3]));
+            } else {
+                throw new IOException(String.format("Invalid line '%s' in checkpoint '%s'", line, path));
+            }
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Counts single measurement of trap (not saved until next save()).
+     */
+    public synchronized void update(short trapID, boolean bReached, String trapName) {
+        attempts[trapID & 0xffff]++;
+        if (bReached) {
+            samples[trapID & 0xffff]++;
+        } else {
+            failedTraps.add(trapName);
+        }
+    }
+
+    /**
+     * Counts request to measure trap.
+     * @return true if the measurement was already performed before resume (sample is loaded from log)
+     */
+    public synchronized boolean replay(short trapID) {
+        return attempts[trapID & 0xffff] > requests[trapID & 0xffff]++;
+    }
+
+    static int hitKey(short trapID, int occurrence) {
+        return ((trapID & 0xffff) << 16) | (occurrence & 0xffff);
+    }
+
+    /**
+     * Counts single measurement of given occurrence of hit-count trap (not saved until next save()).
+     */
+    public synchronized void updateHit(short trapID, int occurrence) {
+        hitAttempts.merge(hitKey(trapID, occurrence), 1, Integer::sum);
+    }
+
+    /**
+     * Counts request to measure given occurrence of hit-count trap.
+     * @return true if the measurement was already performed before resume
+     */
+    public synchronized boolean replayHit(short trapID, int occurrence) {
+        int key = hitKey(trapID, occurrence);
+        return hitAttempts.getOrDefault(key, 0) > hitRequests.merge(key, 1, Integer::sum) - 1;
+    }
+
+    public synchronized int getAttempts(short trapID) {
+        return attempts[trapID & 0xffff];
+    }
+
+    public synchronized int getSamples(short trapID) {
+        return samples[trapID & 0xffff];
+    }
+
+    /**
+     * Saves checkpoint valid for first logRecords records of session log (all of them must be already written).
+     */
+    public synchronized void save(long logRecords) throws IOException {
+        this.logRecords = logRecords;
+        File tmpFile = new File(path + ".tmp");
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(tmpFile))) {
+            bw.write("# JCProfiler session checkpoint, continue by JCProfiler_client --resume <experiment>\n");
+            bw.write(String.format("experiment %s\n", experimentID));
+            bw.write(String.format("seed %d\n", seed));
+            bw.write(String.format("order %s\n", order));
+            bw.write(String.format("records %d\n", logRecords));
+            for (String family : completedFamilies) {
+                bw.write(String.format("family %s\n", family));
+            }
+            for (String trap : failedTraps) {
+                bw.write(String.format("failed %s\n", trap));
+            }
+            for (int trapID = 0; trapID < attempts.length; trapID++) {
+                if (attempts[trapID] > 0) {
+                    bw.write(String.format("trap %04x %d %d\n", trapID, attempts[trapID], samples[trapID]));
+                }
+            }
+            for (Integer key : hitAttempts.keySet()) {
+                bw.write(String.format("hit %04x %d %d\n", key >>> 16, key & 0xffff, hitAttempts.get(key)));
+            }
+        }
+        Files.move(tmpFile.toPath(), new File(path).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
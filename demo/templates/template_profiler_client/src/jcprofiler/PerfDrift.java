@@ -0,0 +1,99 @@
+package jcprofiler;
+
+import java.util.Arrays;
+
+/**
+ * Estimate of drift during session. Every sample is compared with median of its trap (residual),
+ * mean residual of every round shows how much slower (faster) the card was in that round, slope
+ * of residuals over time shows trend within whole session. Samples are kept in primitive arrays.
+ */
+public class PerfDrift {
+    private short[] trapIDs = new short[PerfSampleStore.INITIAL_CAPACITY];
+    private int[] rounds = new int[PerfSampleStore.INITIAL_CAPACITY];
+    private long[] timestamps = new long[PerfSampleStore.INITIAL_CAPACITY];
+    private long[] durations = new long[PerfSampleStore.INITIAL_CAPACITY];
+    private int count = 0;
+    private int numRounds = 0;
+
+    /**
+     * @param timestampNs time of measurement (System.nanoTime())
+     * @param durationNs measured time from start of command to trap
+     */
+    public synchronized void add(short trapID, int round, long timestampNs, long durationNs) {
+        if (count == trapIDs.length) {
+            int capacity = count * 2;
+            trapIDs = Arrays.copyOf(trapIDs, capacity);
+            rounds = Arrays.copyOf(rounds, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            durations = Arrays.copyOf(durations, capacity);
+        }
+        trapIDs[count] = trapID;
+        rounds[count] = round;
+        timestamps[count] = timestampNs;
+        durations[count] = durationNs;
+        count++;
+        numRounds = Math.max(numRounds, round + 1);
+    }
+
+    public int getNumRounds() {
+        return numRounds;
+    }
+
+    /**
+     * @return median of every trap (by dense index of store), each trap is sorted only once
+     */
+    private static long[] medians(PerfSampleStore perfStore) {
+        long[] medians = new long[perfStore.size()];
+        for (int i = 0; i < medians.length; i++) {
+            medians[i] = perfStore.median(i);
+        }
+        return medians;
+    }
+
+    /**
+     * @return mean difference (ns) of samples of every round from medians of their traps, NaN for round without samples
+     */
+    public double[] roundOffsets(PerfSampleStore perfStore) {
+        long[] medians = medians(perfStore);
+        double[] sums = new double[numRounds];
+        int[] counts = new int[numRounds];
+        for (int i = 0; i < count; i++) {
+            int index = perfStore.indexOf(trapIDs[i]);
+            if (index >= 0 && perfStore.count(index) > 0) {
+                sums[rounds[i]] += durations[i] - medians[index];
+                counts[rounds[i]]++;
+            }
+        }
+        for (int r = 0; r < numRounds; r++) {
+            sums[r] = (counts[r] > 0) ? sums[r] / counts[r] : Double.NaN;
+        }
+        return sums;
+    }
+
+    /**
+     * @return least squares slope of residuals over time (ns of measured time per minute of session), 0 if not available
+     */
+    public double trend(PerfSampleStore perfStore) {
+        long[] medians = medians(perfStore);
+        double n = 0;
+        double sumT = 0;
+        double sumR = 0;
+        double sumTT = 0;
+        double sumTR = 0;
+        for (int i = 0; i < count; i++) {
+            int index = perfStore.indexOf(trapIDs[i]);
+            if (index < 0 || perfStore.count(index) == 0) {
+                continue;
+            }
+            double t = (timestamps[i] - timestamps[0]) / 60e9; // minutes
+            double r = durations[i] - medians[index];
+            n++;
+            sumT += t;
+            sumR += r;
+            sumTT += t * t;
+            sumTR += t * r;
+        }
+        double denominator = n * sumTT - sumT * sumT;
+        return (n < 2 || denominator == 0) ? 0 : (n * sumTR - sumT * sumR) / denominator;
+    }
+}
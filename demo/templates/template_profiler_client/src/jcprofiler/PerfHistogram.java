@@ -0,0 +1,139 @@
+package jcprofiler;
+
+/**
+ * Fixed-memory histogram of times (ns) with logarithmic buckets: every power of two is split into
+ * SUB_BUCKETS linear buckets, so relative error of percentiles is below 1 / SUB_BUCKETS (~0.8 %),
+ * times above 2^MAX_EXPONENT ns (~18 minutes) share last bucket (min and max are exact).
+ * Negative values (differences of two times, e.g. short segment measured within one round) are counted by
+ * magnitude in separate buckets allocated on first negative value.
+ * Recording only increments counter, nothing else is allocated (~17 KB per sign).
+ * Shows distributions which are not summarized well by median (e.g., bimodal garbage collection).
+ */
+public class PerfHistogram {
+    static final int SUB_BUCKET_BITS = 7;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int MAX_EXPONENT = 40;
+    static final int NUM_BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final int[] counts = new int[NUM_BUCKETS];
+    private int[] negativeCounts = null; // bucket of magnitude of negative values
+    private long total = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
+
+    /**
+     * @param nanos non-negative value
+     */
+    static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos); // >= SUB_BUCKET_BITS
+        if (exponent > MAX_EXPONENT) {
+            return NUM_BUCKETS - 1;
+        }
+        int mantissa = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + mantissa;
+    }
+
+    /**
+     * @return lowest value falling into bucket
+     */
+    static long bucketStart(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+
+    static long bucketWidth(int bucket) {
+        return (bucket < SUB_BUCKETS) ? 1 : 1L << (bucket / SUB_BUCKETS - 1);
+    }
+
+    public void record(long nanos) {
+        if (nanos >= 0) {
+            counts[bucket(nanos)]++;
+        } else {
+            if (negativeCounts == null) {
+                negativeCounts = new int[NUM_BUCKETS];
+            }
+            negativeCounts[bucket(-Math.max(nanos, -Long.MAX_VALUE))]++;
+        }
+        total++;
+        min = Math.min(min, nanos);
+        max = Math.max(max, nanos);
+    }
+
+    public void addAll(PerfHistogram other) {
+        for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+            counts[bucket] += other.counts[bucket];
+        }
+        if (other.negativeCounts != null) {
+            if (negativeCounts == null) {
+                negativeCounts = new int[NUM_BUCKETS];
+            }
+            for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+                negativeCounts[bucket] += other.negativeCounts[bucket];
+            }
+        }
+        total += other.total;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public long count() {
+        return total;
+    }
+
+    /**
+     * @return smallest recorded value (exact), -1 if empty
+     */
+    public long min() {
+        return (total == 0) ? -1 : min;
+    }
+
+    /**
+     * @return largest recorded value (exact), -1 if empty
+     */
+    public long max() {
+        return (total == 0) ? -1 : max;
+    }
+
+    /**
+     * @param p percentile in range [0, 1]
+     * @return middle of bucket with value at given percentile (nearest rank), between min() and max(), -1 if empty
+     */
+    public long percentile(double p) {
+        if (total == 0) {
+            return -1;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int bucket = NUM_BUCKETS - 1; negativeCounts != null && bucket >= 0; bucket--) { // largest magnitude first
+            seen += negativeCounts[bucket];
+            if (seen >= rank) {
+                return Math.max(min, -(bucketStart(bucket) + bucketWidth(bucket) / 2));
+            }
+        }
+        for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                return Math.min(max, bucketStart(bucket) + bucketWidth(bucket) / 2);
+            }
+        }
+        return max;
+    }
+
+    public long p50() {
+        return percentile(0.50);
+    }
+
+    public long p90() {
+        return percentile(0.90);
+    }
+
+    public long p99() {
+        return percentile(0.99);
+    }
+}
@@ -0,0 +1,248 @@
+package jcprofiler;
+
+import java.util.Arrays;
+
+/**
+ * Per-trap store of raw measurements. Traps are kept under dense index (order of registration),
+ * every trap holds growing array of samples (nanoseconds from start of command to trap hit)
+ * and fixed-size histogram of them. Differences between trap and its previous trap measured in the same
+ * round (segment samples) are kept in separate histogram.
+ * No boxing is performed when samples are added or statistics are computed.
+ */
+public class PerfSampleStore {
+    static final int INITIAL_CAPACITY = 16;
+
+    private final char[] trapIndex = new char[0x10000]; // trapID -> dense index + 1 (0 == not registered)
+    private short[] trapIDs = new short[INITIAL_CAPACITY];
+    private short[] prevTrapIDs = new short[INITIAL_CAPACITY];
+    private long[][] samples = new long[INITIAL_CAPACITY][];
+    private PerfHistogram[] histograms = new PerfHistogram[INITIAL_CAPACITY];
+    private PerfHistogram[] segmentHistograms = new PerfHistogram[INITIAL_CAPACITY];
+    private int[] counts = new int[INITIAL_CAPACITY];
+    private int numTraps = 0;
+
+    // sorted copy of samples of single trap, reused by all statistics of this trap
+    private long[] sorted = new long[INITIAL_CAPACITY];
+    private int sortedIndex = -1;
+    private int sortedCount = 0;
+
+    /**
+     * Registers traps in given order, previous trap of the first one is PMC.PERF_START.
+     * @param perfStops trap ids in order of execution
+     */
+    public void registerTraps(short[] perfStops) {
+        short prevTrapID = PMC.PERF_START;
+        for (short trapID : perfStops) {
+            register(trapID, prevTrapID);
+            prevTrapID = trapID;
+        }
+    }
+
+    public int register(short trapID, short prevTrapID) {
+        int index = indexOf(trapID);
+        if (index < 0) {
+            if (numTraps == trapIDs.length) {
+                int capacity = trapIDs.length * 2;
+                trapIDs = Arrays.copyOf(trapIDs, capacity);
+                prevTrapIDs = Arrays.copyOf(prevTrapIDs, capacity);
+                samples = Arrays.copyOf(samples, capacity);
+                histograms = Arrays.copyOf(histograms, capacity);
+                segmentHistograms = Arrays.copyOf(segmentHistograms, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+            }
+            index = numTraps++;
+            trapIDs[index] = trapID;
+            samples[index] = new long[INITIAL_CAPACITY];
+            histograms[index] = new PerfHistogram();
+            segmentHistograms[index] = new PerfHistogram();
+            trapIndex[trapID & 0xffff] = (char) (index + 1);
+        }
+        prevTrapIDs[index] = prevTrapID;
+        return index;
+    }
+
+    public int indexOf(short trapID) {
+        return trapIndex[trapID & 0xffff] - 1;
+    }
+
+    public int size() {
+        return numTraps;
+    }
+
+    public short getTrapID(int index) {
+        return trapIDs[index];
+    }
+
+    public short getPrevTrapID(int index) {
+        return prevTrapIDs[index];
+    }
+
+    public void add(short trapID, long nanos) {
+        int index = indexOf(trapID);
+        if (index < 0) {
+            index = register(trapID, PMC.PERF_START);
+        }
+        add(index, nanos);
+    }
+
+    public void add(int index, long nanos) {
+        long[] trapSamples = samples[index];
+        if (counts[index] == trapSamples.length) {
+            trapSamples = Arrays.copyOf(trapSamples, trapSamples.length * 2);
+            samples[index] = trapSamples;
+        }
+        trapSamples[counts[index]++] = nanos;
+        histograms[index].record(nanos);
+        if (index == sortedIndex) {
+            sortedIndex = -1;
+        }
+    }
+
+    /**
+     * Adds segment sample, i.e. difference between trap and its previous trap measured in the same round.
+     */
+    public void addSegment(int index, long nanos) {
+        segmentHistograms[index].record(nanos);
+    }
+
+    /**
+     * Adds all samples of other store (e.g., measured on other card), registers missing traps.
+     */
+    public void addAll(PerfSampleStore other) {
+        for (int i = 0; i < other.size(); i++) {
+            int index = indexOf(other.getTrapID(i));
+            if (index < 0) {
+                index = register(other.getTrapID(i), other.getPrevTrapID(i));
+            }
+            for (int s = 0; s < other.count(i); s++) {
+                add(index, other.sample(i, s));
+            }
+            segmentHistograms[index].addAll(other.segmentHistograms[i]);
+        }
+    }
+
+    public int count(int index) {
+        return counts[index];
+    }
+
+    public long sample(int index, int i) {
+        return samples[index][i];
+    }
+
+    public PerfHistogram histogram(int index) {
+        return histograms[index];
+    }
+
+    /**
+     * @return histogram of segment samples, times from start when previous trap was not measured, null if not available
+     */
+    private PerfHistogram segmentHistogram(int index) {
+        if (segmentHistograms[index].count() > 0) {
+            return segmentHistograms[index];
+        }
+        int prevIndex = indexOf(prevTrapIDs[index]);
+        return (prevIndex >= 0 && counts[prevIndex] > 0) ? null : histograms[index]; // no pair measured in the same round
+    }
+
+    /**
+     * @return true if segmentPercentile is available for given trap
+     */
+    public boolean hasSegmentDistribution(int index) {
+        PerfHistogram histogram = segmentHistogram(index);
+        return histogram != null && histogram.count() > 0;
+    }
+
+    /**
+     * @param p percentile in range [0, 1]
+     * @return time (ns) between previous trap and given trap at percentile of segment samples (max for p == 1),
+     * may be negative for short segments, valid only if hasSegmentDistribution(index)
+     */
+    public long segmentPercentile(int index, double p) {
+        PerfHistogram histogram = segmentHistogram(index);
+        if (histogram == null) {
+            return 0;
+        }
+        return (p >= 1) ? histogram.max() : histogram.percentile(p);
+    }
+
+    /**
+     * @return sorted samples of given trap (valid until next call), number of valid items is count(index)
+     */
+    long[] sorted(int index) {
+        if (index != sortedIndex || counts[index] != sortedCount) {
+            int n = counts[index];
+            if (sorted.length < n) {
+                sorted = new long[Math.max(n, sorted.length * 2)];
+            }
+            System.arraycopy(samples[index], 0, sorted, 0, n);
+            Arrays.sort(sorted, 0, n);
+            sortedIndex = index;
+            sortedCount = n;
+        }
+        return sorted;
+    }
+
+    /**
+     * @param index dense trap index
+     * @param p percentile in range [0, 1]
+     * @return sample at given percentile (nearest rank), -1 if no sample is available
+     */
+    public long percentile(int index, double p) {
+        int n = counts[index];
+        if (n == 0) {
+            return -1;
+        }
+        int rank = (int) Math.ceil(p * n) - 1;
+        return sorted(index)[Math.min(n - 1, Math.max(0, rank))];
+    }
+
+    public long min(int index) {
+        return percentile(index, 0);
+    }
+
+    public long median(int index) {
+        int n = counts[index];
+        return (n == 0) ? -1 : sorted(index)[n / 2];
+    }
+
+    public long p90(int index) {
+        return percentile(index, 0.90);
+    }
+
+    public long p99(int index) {
+        return percentile(index, 0.99);
+    }
+
+    public long max(int index) {
+        return percentile(index, 1);
+    }
+
+    public long medianConfidenceWidth(int index) {
+        return counts[index] == 0 ? 0 : PerfStats.medianConfidenceWidth(sorted(index), counts[index]);
+    }
+
+    /**
+     * @return median time (ns) between previous trap and given trap, -1 if not measured
+     */
+    public long segmentMedian(int index) {
+        if (counts[index] == 0) {
+            return -1;
+        }
+        long median = median(index);
+        int prevIndex = indexOf(prevTrapIDs[index]);
+        if (prevIndex >= 0 && counts[prevIndex] > 0) {
+            median -= median(prevIndex);
+        }
+        return median;
+    }
+
+    /**
+     * @return width (ns) of confidence interval of median time between previous trap and given trap
+     */
+    public double segmentConfidenceWidth(int index) {
+        double w = medianConfidenceWidth(index);
+        int prevIndex = indexOf(prevTrapIDs[index]);
+        double wPrev = (prevIndex >= 0) ? medianConfidenceWidth(prevIndex) : 0;
+        return Math.sqrt(w * w + wPrev * wPrev);
+    }
+}
@@ -0,0 +1,97 @@
+package jcprofiler;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Order in which traps of family are measured in every repeat (round) of sweep. Ascending order turns
+ * slow drift (card heating, EEPROM wear-leveling, host load) into systematic bias between neighbouring
+ * traps, other orders spread it:
+ *   RANDOM       - new random permutation in every round,
+ *   LATIN_SQUARE - rows of balanced (Williams) Latin square over randomly permuted traps, every trap is
+ *                  measured at every position and after every other trap equally often over n (2n for odd n) rounds,
+ *   PAIRED       - segments in random order, both borders of segment measured as prev, trap, trap, prev
+ *                  (linear drift cancels within pair).
+ * Orders are deterministic for given seed and round, so resumed session continues with the same order.
+ */
+public class PerfScheduler {
+    private final PerfTests.TrapOrder order;
+    private final long seed;
+
+    public PerfScheduler(PerfTests.TrapOrder order, long seed) {
+        this.order = order;
+        this.seed = seed;
+    }
+
+    /**
+     * @param numTraps number of traps in family (in ascending order)
+     * @param round repeat of sweep (0-based)
+     * @return positions of traps (0 .. numTraps - 1) in order of measurement, position may repeat (PAIRED)
+     */
+    public int[] order(int numTraps, int round) {
+        switch (order) {
+            case RANDOM:
+                return permutation(numTraps, new Random(mix(seed, round)));
+            case LATIN_SQUARE:
+                return latinSquareRow(numTraps, round);
+            case PAIRED:
+                return pairs(numTraps, round);
+            default:
+                int[] ascending = new int[numTraps];
+                for (int i = 0; i < numTraps; i++) {
+                    ascending[i] = i;
+                }
+                return ascending;
+        }
+    }
+
+    static long mix(long seed, int round) {
+        return seed ^ (round * 0x9E3779B97F4A7C15L);
+    }
+
+    static int[] permutation(int n, Random random) {
+        int[] result = new int[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = i;
+        }
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = result[i];
+            result[i] = result[j];
+            result[j] = tmp;
+        }
+        return result;
+    }
+
+    int[] latinSquareRow(int n, int round) {
+        int[] traps = permutation(n, new Random(seed)); // same relabelling in all rounds
+        int period = (n % 2 == 0) ? n : 2 * n;
+        int row = (period > 0) ? round % period : 0;
+        int[] result = new int[n];
+        // Williams sequence 0, 1, n-1, 2, n-2, ... shifted by row, odd n needs also reversed rows
+        for (int j = 0; j < n; j++) {
+            int williams = (j % 2 == 1) ? (j + 1) / 2 : (n - j / 2) % n;
+            int column = (row >= n) ? n - 1 - j : j;
+            result[column] = traps[(williams + row) % n];
+        }
+        return result;
+    }
+
+    int[] pairs(int n, int round) {
+        int[] segments = permutation(n, new Random(mix(seed, round)));
+        int[] result = new int[4 * n];
+        int count = 0;
+        for (int segment : segments) {
+            if (segment == 0) {
+                result[count++] = 0; // previous is PERF_START (time 0), measured twice to keep pairs balanced
+                result[count++] = 0;
+            } else {
+                result[count++] = segment - 1;
+                result[count++] = segment;
+                result[count++] = segment;
+                result[count++] = segment - 1;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+}
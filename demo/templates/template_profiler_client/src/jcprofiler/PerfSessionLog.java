@@ -0,0 +1,249 @@
+package jcprofiler;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only binary log of all measurements of profiling session (OC_PERF_log_id.bin). File starts with
+ * header followed by fixed-width records, one per sample:
+ *   header  (64 B): magic "JCPL", version (int), start of session (ms since epoch, long), card name (48 B, UTF-8, zero padded)
+ *   record  (24 B): trapID (short), previous trapID (short), SW (short), card index (byte), flags (byte),
+ *                   timestamp (ns from start of session, long), duration (ns from start of command to trap, long)
+ * Records of hit-count profiling (FLAG_HIT) carry occurrence of the trap instead of previous trapID.
+ * Records are collected in buffer and appended by FileChannel when buffer is full or FLUSH_INTERVAL_MS elapsed,
+ * so at most last interval is lost if process dies. Incomplete record at end of file (crash during write) is ignored
+ * by Reader. CSV files are exported from the log.
+ */
+public class PerfSessionLog implements AutoCloseable {
+    public static final int MAGIC = 0x4a43504c; // "JCPL"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int CARD_NAME_SIZE = 48;
+    public static final int RECORD_SIZE = 24;
+    public static final int FLAG_REACHED = 0x01; // trap was reached (sample is valid)
+    public static final int FLAG_HIT = 0x02;     // sample of hit-count profiling, previous trapID is occurrence
+    static final int BUFFER_RECORDS = 1024;
+    static final long FLUSH_INTERVAL_MS = 1000;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_RECORDS * RECORD_SIZE).order(ByteOrder.BIG_ENDIAN);
+    private final long startNs;
+    private long lastFlushMs = System.currentTimeMillis();
+    private long numRecords = 0;
+
+    /**
+     * Creates new log (existing file is overwritten) and writes session header.
+     */
+    public PerfSessionLog(String path, String cardName) throws IOException {
+        channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        startNs = System.nanoTime();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(System.currentTimeMillis());
+        byte[] name = cardName.getBytes(StandardCharsets.UTF_8);
+        header.put(name, 0, Math.min(name.length, CARD_NAME_SIZE));
+        header.position(0);
+        writeFully(header);
+    }
+
+    /**
+     * Opens existing log of resumed session, records after first numRecords ones (not covered by checkpoint) are discarded.
+     * Timestamps of appended records continue from start of original session.
+     */
+    public PerfSessionLog(String path, long numRecords) throws IOException {
+        channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        while (header.hasRemaining() && channel.read(header) >= 0) {
+        }
+        if (header.hasRemaining() || header.getInt(0) != MAGIC || header.getInt(4) != VERSION
+                || channel.size() < HEADER_SIZE + numRecords * RECORD_SIZE) {
+            channel.close();
+            throw new IOException(String.format("File '%s' is not session log of version %d with %d records", path, VERSION, numRecords));
+        }
+        channel.truncate(HEADER_SIZE + numRecords * RECORD_SIZE); // file must not be mapped by Reader while truncated (Windows)
+        channel.position(channel.size());
+        startNs = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - header.getLong(8));
+        this.numRecords = numRecords;
+    }
+
+    /**
+     * Appends single sample. Does not allocate, safe to call from multiple threads (fleet mode).
+     * @param flags FLAG_REACHED, FLAG_HIT
+     * @return true if buffered records were written into file
+     */
+    public synchronized boolean record(short trapID, short prevTrapID, int sw, int cardIndex, int flags, long durationNs) throws IOException {
+        buffer.putShort(trapID);
+        buffer.putShort(prevTrapID);
+        buffer.putShort((short) sw);
+        buffer.put((byte) cardIndex);
+        buffer.put((byte) flags);
+        buffer.putLong(System.nanoTime() - startNs);
+        buffer.putLong(durationNs);
+        numRecords++;
+        long now = System.currentTimeMillis();
+        if (!buffer.hasRemaining() || now - lastFlushMs >= FLUSH_INTERVAL_MS) {
+            flush();
+            lastFlushMs = now;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized long getNumRecords() {
+        return numRecords;
+    }
+
+    public synchronized void flush() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel.isOpen()) {
+            flush();
+            channel.close();
+        }
+    }
+
+    /**
+     * Read-only view of log mapped into memory, records are accessed by index without parsing whole file.
+     */
+    public static class Reader {
+        private final MappedByteBuffer data;
+        private final int numRecords;
+        public final long startMillis;
+        public final String cardName;
+
+        public Reader(String path) throws IOException {
+            try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+                if (channel.size() < HEADER_SIZE) {
+                    throw new IOException(String.format("File '%s' is not session log (too short)", path));
+                }
+                data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            data.order(ByteOrder.BIG_ENDIAN);
+            if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+                throw new IOException(String.format("File '%s' is not session log of version %d", path, VERSION));
+            }
+            startMillis = data.getLong(8);
+            int nameLength = 0;
+            while (nameLength < CARD_NAME_SIZE && data.get(16 + nameLength) != 0) {
+                nameLength++;
+            }
+            byte[] name = new byte[nameLength];
+            for (int i = 0; i < nameLength; i++) {
+                name[i] = data.get(16 + i);
+            }
+            cardName = new String(name, StandardCharsets.UTF_8);
+            numRecords = (data.capacity() - HEADER_SIZE) / RECORD_SIZE; // incomplete last record is ignored
+        }
+
+        public int size() {
+            return numRecords;
+        }
+
+        private int offset(int index) {
+            return HEADER_SIZE + index * RECORD_SIZE;
+        }
+
+        public short getTrapID(int index) {
+            return data.getShort(offset(index));
+        }
+
+        public short getPrevTrapID(int index) {
+            return data.getShort(offset(index) + 2);
+        }
+
+        public int getSW(int index) {
+            return data.getShort(offset(index) + 4) & 0xffff;
+        }
+
+        public int getCardIndex(int index) {
+            return data.get(offset(index) + 6) & 0xff;
+        }
+
+        public boolean isReached(int index) {
+            return (data.get(offset(index) + 7) & FLAG_REACHED) != 0;
+        }
+
+        public boolean isHit(int index) {
+            return (data.get(offset(index) + 7) & FLAG_HIT) != 0;
+        }
+
+        /**
+         * @return time of sample (ns from start of session)
+         */
+        public long getTimestamp(int index) {
+            return data.getLong(offset(index) + 8);
+        }
+
+        /**
+         * @return measured time (ns from start of command to trap)
+         */
+        public long getDuration(int index) {
+            return data.getLong(offset(index) + 16);
+        }
+
+        /**
+         * Adds all valid samples into store, traps are registered in order of first occurrence.
+         */
+        public void loadSamples(PerfSampleStore perfStore) {
+            for (int i = 0; i < numRecords; i++) {
+                if (isReached(i) && !isHit(i)) {
+                    int index = perfStore.indexOf(getTrapID(i));
+                    if (index < 0) {
+                        index = perfStore.register(getTrapID(i), getPrevTrapID(i));
+                    }
+                    perfStore.add(index, getDuration(i));
+                }
+            }
+        }
+
+        /**
+         * Adds all valid samples of hit-count profiling into stores of their traps (occurrences are registered as traps).
+         */
+        public void loadHitSamples(HashMap<Short, PerfSampleStore> perfHitStores) {
+            for (int i = 0; i < numRecords; i++) {
+                if (isReached(i) && isHit(i)) {
+                    PerfSampleStore hits = perfHitStores.computeIfAbsent(getTrapID(i), trapID -> new PerfSampleStore());
+                    short occurrence = getPrevTrapID(i);
+                    hits.add(hits.register(occurrence, (short) (occurrence - 1)), getDuration(i));
+                }
+            }
+        }
+
+        /**
+         * Exports all records into CSV file, one line per sample.
+         */
+        public void exportCsv(String fileName) throws IOException {
+            try (BufferedWriter csv = new BufferedWriter(new FileWriter(fileName))) {
+                csv.write("trap, previous trap, timestamp (ms from start of session), time (ms), reached, SW, card index\n");
+                for (int i = 0; i < numRecords; i++) {
+                    String prev = isHit(i) ? String.format("occurrence %d", getPrevTrapID(i)) : PerfTests.getPerfStopName(getPrevTrapID(i));
+                    csv.write(String.format(Locale.ROOT, "%s, %s, %.3f, %.3f, %s, %04x, %d\n", PerfTests.getPerfStopName(getTrapID(i)), prev,
+                            PerfStats.toMillis(getTimestamp(i)), PerfStats.toMillis(getDuration(i)), isReached(i), getSW(i), getCardIndex(i)));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package jcprofiler;
+
+/**
+ * Statistics helpers for repeated performance measurements.
+ */
+public class PerfStats {
+    static final double Z_95 = 1.96; // two-sided 95% confidence
+    static final double NANOS_IN_MS = 1000000.0;
+
+    /**
+     * Distribution-free confidence interval of median based on order statistics.
+     * @param sorted measured values sorted in ascending order
+     * @param n number of valid values in sorted
+     * @return {lower, upper} bound of 95% confidence interval of median
+     */
+    public static long[] medianConfidenceInterval(long[] sorted, int n) {
+        double halfWidth = Z_95 * Math.sqrt(n) / 2;
+        int lo = Math.max(0, (int) Math.floor(n / 2.0 - halfWidth));
+        int hi = Math.min(n - 1, (int) Math.ceil(n / 2.0 + halfWidth));
+        return new long[]{sorted[lo], sorted[hi]};
+    }
+
+    public static long medianConfidenceWidth(long[] sorted, int n) {
+        long[] ci = medianConfidenceInterval(sorted, n);
+        return ci[1] - ci[0];
+    }
+
+    public static double toMillis(double nanos) {
+        return nanos / NANOS_IN_MS;
+    }
+}
@@ -1,13 +1,24 @@
 package jcprofiler;
 
-import javafx.util.Pair;
-
 import javax.smartcardio.CardException;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Petr Svenda
@@ -22,17 +33,174 @@ public class PerfTests {
     static final byte           INS_PERF_SETTRAPID = (byte) 0xf5;
     static byte[]               APDU_SETTRAPID = {APPLET_CLA, INS_PERF_SETTRAPID, 0, 0, 2, 0, 0};
     static final byte[]         APDU_SETTRAPID_NONE = {APPLET_CLA, INS_PERF_SETTRAPID, 0, 0, 2, 0, 0};
+    static byte[]               APDU_SETTRAPID_HIT = {APPLET_CLA, INS_PERF_SETTRAPID, 0, 0, 4, 0, 0, 0, 1}; // trapID followed by occurrence which stops execution
+    static final boolean        PERF_SINGLE_APDU = false;                   // if true, trapID is send in P1/P2 of APDU_TRIGGER (applet must call PM.arm()), support is detected at start of session, APDU_SETTRAPID is used if not supported
+    static final byte           OFFSET_P1 = 2;
+
+    static double               PERF_CI_TARGET_WIDTH = 0.5;                 // target width (ms) of 95% confidence interval of segment median, 0 = only fixed number of repeats (see JCProfiler_client --ci-width)
+    static final int            PERF_MIN_REPEATS = 5;                       // minimum number of measurements of trap before its confidence interval is trusted in adaptive mode
+    static final int            PERF_MAX_REPEATS = 100;                     // maximum number of measurements of single trap in adaptive mode
+    static final long           PERF_TIME_BUDGET = 10 * 60 * 1000;          // maximum time (ms) spend by adaptive re-measurement
+    static final short[]        PERF_HIT_TRAPS = {};                        // TODO: traps inside loops or repeatedly called methods profiled per occurrence (e.g., {PMC.TRAP_X_2}), empty if not required
+    static final int            PERF_MAX_HITS = 64;                         // maximum occurrence of hit-count trap which is measured
+    static final SweepStrategy  PERF_SWEEP = SweepStrategy.LINEAR;          // LINEAR measures every trap, BISECT measures sparse subset first and refines only non-flat intervals
+    static TrapOrder            PERF_ORDER = TrapOrder.ASCENDING;           // order of traps in every repeat of LINEAR and fleet sweep, see PerfScheduler (set numRepeats > 1 for RANDOM, LATIN_SQUARE, PAIRED)
+    static Long                 PERF_SEED = null;                           // seed of trap ordering, null = random (seed is printed and kept for resume)
+    static final int            PERF_BISECT_INITIAL_TRAPS = 8;              // number of traps measured in first (coarse) pass of bisection sweep
+    static final double         PERF_BISECT_THRESHOLD = 5;                  // interval with time difference (ms) above this value is refined by bisection sweep
+    static final boolean        PERF_FLEET = false;                         // if true, all readers with card present are used in parallel (identical cards with same applet)
+    static final int            PERF_CALIBRATION_REPEATS = 50;              // number of calibration measurements of trap overhead and round trip, 0 = no calibration
+    static ApduTrace.Level      APDU_TRACE_LEVEL = ApduTrace.Level.OFF;     // amount of APDU trace printed to console between measurements (see JCProfiler_client --trace)
+    static boolean              PERF_SIMULATOR = false;                     // if true, in-process SimulatedCard is used instead of physical card (see JCProfiler_client --simulator)
+    static String               PERF_SIMULATOR_APPLET = null;               // class name of SimulatedApplet to run on simulator, null = ScriptedApplet
+    static String               PERF_SIMULATOR_SCRIPT = null;               // script of ScriptedApplet, null = traps of all generated families in order, 1 ms each
+    static String               PERF_SIMULATOR_COSTS = null;                // properties file with cost model of simulator (ns), null = default costs
+    static String               PERF_TRAP_MAP = TrapSourceMap.TRAP_MAP_FILE; // trap source map written by generator, used for annotation of applet files
+    static String               PERF_RESUME = null;                         // experimentID of interrupted session to continue (see PerfCheckpoint), null = new session
+    static String               PERF_APPLET_DIR = null;                     // directory with generated applet files to annotate, null = directory recorded in trap source map
     
+    enum SweepStrategy {
+        LINEAR,
+        BISECT
+    }
+
+    enum TrapOrder {
+        ASCENDING,
+        RANDOM,
+        LATIN_SQUARE,
+        PAIRED
+    }
+
+    /**
+     * Reachability of trap from handler of trigger command found by static analysis of generator.
+     */
+    enum TrapReachability {
+        REACHABLE,      // executed whenever profiled method is executed
+        CONDITIONAL,    // inside if, switch, loop or catch
+        AFTER_RETURN,   // after statement which may return or throw
+        DEAD            // cannot be reached by trigger command, not measured
+    }
+
+    /**
+     * Traps of single profiled method (family PMC.TRAP_x_*) together with command which executes it.
+     */
+    static class PerfTrapFamily {
+        public final String name;
+        public final byte[] trigger;
+        public final short[] perfStops;
+        public final short perfStopComplete;
+        public final TrapReachability[] reachability; // reachability of perfStops (without complete), null if not analysed
+
+        PerfTrapFamily(String name, byte[] trigger, short[] perfStops, short perfStopComplete) {
+            this(name, trigger, perfStops, perfStopComplete, null);
+        }
+
+        PerfTrapFamily(String name, byte[] trigger, short[] perfStops, short perfStopComplete, TrapReachability[] reachability) {
+            this.name = name;
+            this.trigger = trigger;
+            this.perfStops = perfStops;
+            this.perfStopComplete = perfStopComplete;
+            this.reachability = reachability;
+        }
+
+        TrapReachability getReachability(short trapID) {
+            for (int i = 0; reachability != null && i < reachability.length && i < perfStops.length; i++) {
+                if (perfStops[i] == trapID) {
+                    return reachability[i];
+                }
+            }
+            return TrapReachability.REACHABLE;
+        }
+
+        /**
+         * @return traps which can be reached by trigger command (dead traps are skipped)
+         */
+        short[] getMeasuredStops() {
+            short[] measured = new short[perfStops.length];
+            int count = 0;
+            for (short trapID : perfStops) {
+                if (getReachability(trapID) != TrapReachability.DEAD) {
+                    measured[count++] = trapID;
+                }
+            }
+            return Arrays.copyOf(measured, count);
+        }
+    }
+
     class PerfConfig {
         public String cardName = "noCardNameGiven";
-        public FileOutputStream perfFile = null;
-        public ArrayList<Pair<String, Long>> perfResultsSingleOp = new ArrayList<>();
+        public PerfSessionLog perfLog = null;   // binary log of all samples of session
+        public PerfCheckpoint checkpoint = null; // state of session saved for resume
+        public long seed = 0;                   // seed of random generator of session (persisted for resume)
+        public int repeat = 0;                  // current repetition of sweep over traps
+        public PerfScheduler scheduler = null;  // order of traps in every repetition
+        public PerfDrift drift = new PerfDrift(); // samples of repetitions for drift estimate
         public ArrayList<String> perfResultsSubparts = new ArrayList<>();
-        public HashMap<Short, Pair<Short, Long>> perfResultsSubpartsRaw = new HashMap<>(); // hashmap with key being perf trap id, folowed by pair <prevTrapID, elapsedTimeFromPrev>
+        public PerfSampleStore perfStore = new PerfSampleStore(); // all measured times (ns from start of command to trap) for every perf trap id
         public boolean bMeasurePerf = true;
-        public short[] perfStops = null;
+        public ArrayList<PerfTrapFamily> perfFamilies = new ArrayList<>(); // all families are profiled in one session
+        public PerfTrapFamily perfFamily = null; // currently profiled family
+        public short[] perfStops = null;        // traps of currently profiled family
         public short perfStopComplete = -1;
+        public boolean bSingleApduArming = PERF_SINGLE_APDU;
         public ArrayList<String> failedPerfTraps = new ArrayList<>();
+        public ArrayList<String> skippedPerfTraps = new ArrayList<>(); // statically unreachable traps, not measured
+        public double ciTargetWidth = PERF_CI_TARGET_WIDTH;
+        public int minRepeats = PERF_MIN_REPEATS;
+        public int maxRepeats = PERF_MAX_REPEATS;
+        public long timeBudget = PERF_TIME_BUDGET;
+        public SweepStrategy sweep = PERF_SWEEP;
+        public double bisectThreshold = PERF_BISECT_THRESHOLD;
+        public PerfCalibration calibration = new PerfCalibration();
+        public HashMap<Short, PerfSampleStore> perfHitStores = new HashMap<>(); // hit-count trap id -> times (ns) to reach its 1..n-th occurrence
+        public ArrayList<PerfSampleStore> perfCardStores = new ArrayList<>(); // per-card results in fleet mode
+    }
+
+    /**
+     * Pairs samples of neighbouring traps measured within single round, difference of pair is single
+     * segment sample (PerfSampleStore.addSegment). Sample is paired with nearest unpaired sample of
+     * neighbour, so PAIRED order (prev, trap, trap, prev) gives two pairs measured right after each other.
+     */
+    static class RoundSegments {
+        private final PerfSampleStore perfStore;
+        private final short[] perfStops;
+        private final long[] waitingForPrev; // sample of trap not yet paired with sample of previous trap, -1 if none
+        private final long[] waitingForNext; // sample of trap not yet paired with sample of next trap, -1 if none
+
+        RoundSegments(PerfSampleStore perfStore, short[] perfStops) {
+            this.perfStore = perfStore;
+            this.perfStops = perfStops;
+            waitingForPrev = new long[perfStops.length];
+            waitingForNext = new long[perfStops.length];
+            Arrays.fill(waitingForPrev, -1);
+            Arrays.fill(waitingForNext, -1);
+        }
+
+        void reached(int position, long nanos) {
+            if (position > 0) {
+                if (waitingForNext[position - 1] >= 0) {
+                    addSegment(position, nanos - waitingForNext[position - 1]);
+                    waitingForNext[position - 1] = -1;
+                } else {
+                    waitingForPrev[position] = nanos;
+                }
+            }
+            if (position + 1 < perfStops.length) {
+                if (waitingForPrev[position + 1] >= 0) {
+                    addSegment(position + 1, waitingForPrev[position + 1] - nanos);
+                    waitingForPrev[position + 1] = -1;
+                } else {
+                    waitingForNext[position] = nanos;
+                }
+            }
+        }
+
+        private void addSegment(int position, long nanos) {
+            int index = perfStore.indexOf(perfStops[position]);
+            if (index >= 0 && perfStore.getPrevTrapID(index) == perfStops[position - 1]) { // segments of chained traps are not paired
+                perfStore.addSegment(index, nanos);
+            }
+        }
     }
 
     PerfTests() {
@@ -41,34 +209,121 @@ public class PerfTests {
 
     void RunPerformanceTests(int numRepeats, boolean MODIFY_SOURCE_FILES_BY_PERF) throws Exception {
         PerfConfig cfg = new PerfConfig();
-        String experimentID = String.format("%d", System.currentTimeMillis());
-        cfg.perfFile = new FileOutputStream(String.format("OC_PERF_log_%s.csv", experimentID));
+        String experimentID = (PERF_RESUME != null) ? PERF_RESUME : String.format("%d", System.currentTimeMillis());
+        String logFileName = String.format("OC_PERF_log_%s.bin", experimentID);
+        String checkpointFileName = String.format("OC_PERF_state_%s.txt", experimentID);
+        if (PERF_RESUME != null) {
+            // samples measured before last checkpoint are loaded, session continues with first unfinished trap
+            cfg.checkpoint = PerfCheckpoint.load(checkpointFileName);
+            cfg.perfLog = new PerfSessionLog(logFileName, cfg.checkpoint.logRecords);
+            PerfSessionLog.Reader log = new PerfSessionLog.Reader(logFileName);
+            log.loadSamples(cfg.perfStore);
+            log.loadHitSamples(cfg.perfHitStores);
+            cfg.failedPerfTraps.addAll(cfg.checkpoint.failedTraps);
+            PERF_ORDER = cfg.checkpoint.order;
+            System.out.println(String.format("INFO: Resuming session %s: %d records, %d trap families completed", experimentID, cfg.checkpoint.logRecords, cfg.checkpoint.completedFamilies.size()));
+        } else {
+            cfg.checkpoint = new PerfCheckpoint(checkpointFileName, experimentID, (PERF_SEED != null) ? PERF_SEED : System.nanoTime());
+            cfg.checkpoint.order = PERF_ORDER;
+            cfg.perfLog = new PerfSessionLog(logFileName, cfg.cardName);
+        }
+        cfg.seed = cfg.checkpoint.seed;
+        cfg.scheduler = new PerfScheduler(PERF_ORDER, cfg.seed);
+        if (PERF_ORDER != TrapOrder.ASCENDING) {
+            System.out.println(String.format("INFO: Traps measured in %s order, seed %d", PERF_ORDER, cfg.seed));
+        }
 
         try {
-            CardManager cardMngr = new CardManager();
+            ArrayList<CardManager> fleet = new ArrayList<>();
             System.out.println("Connecting to card...");
-            cardMngr.ConnectToCard(APPLET_AID);
+            if (PERF_SIMULATOR) {
+                CardManager cardMngr = new CardManager();
+                cardMngr.ConnectToSimulator(CreateSimulator(), APPLET_AID);
+                fleet.add(cardMngr);
+            } else if (PERF_FLEET) {
+                fleet = CardManager.ConnectToAllCards(APPLET_AID);
+            } else {
+                CardManager cardMngr = new CardManager();
+                cardMngr.ConnectToCard(APPLET_AID);
+                fleet.add(cardMngr);
+            }
             System.out.println(" Done.");
+            for (CardManager mngr : fleet) {
+                mngr.m_trace.setLevel(APDU_TRACE_LEVEL);
+                mngr.transmit(new CommandAPDU(APDU_SETTRAPID_NONE)); // erase any previous performance stop 
+                if (APDU_CLEANUP != null) { // reset if required
+                    mngr.transmit(new CommandAPDU(APDU_CLEANUP));
+                }
+            }
+            CardManager cardMngr = fleet.get(0); // calibration and refinement are performed on first card
 
-            cardMngr.transmit(new CommandAPDU(APDU_SETTRAPID_NONE)); // erase any previous performance stop 
-            if (APDU_CLEANUP != null) { // reset if required
-                cardMngr.transmit(new CommandAPDU(APDU_CLEANUP));
+            if (PERF_CALIBRATION_REPEATS > 0) {
+                cfg.calibration.calibrate(cardMngr, PERF_CALIBRATION_REPEATS);
             }
 
             System.out.println("\n-------------- Performance profiling start --------------\n\n");
 
 //### PLACEHOLDER PERFTRAPS INIT
-            for (int repeat = 0; repeat < numRepeats; repeat++) {
-                CommandAPDU cmd = new CommandAPDU(APDU_TRIGGER);
-                PerfAnalyzeCommand("insert nice name", cmd, cardMngr, cfg);
+            if (cfg.perfFamilies.isEmpty() && cfg.perfStops != null) {
+                cfg.perfFamilies.add(new PerfTrapFamily("insert nice name", APDU_TRIGGER, cfg.perfStops, cfg.perfStopComplete));
             }
+            if (cfg.bSingleApduArming) {
+                cfg.bSingleApduArming = detectSingleApduArming(cardMngr, cfg);
+            }
+            for (PerfTrapFamily family : cfg.perfFamilies) {
+                if (cfg.checkpoint.completedFamilies.contains(family.name)) {
+                    System.out.println(String.format("%s: completed before resume, skipped", family.name));
+                    continue;
+                }
+                cfg.perfFamily = family;
+                cfg.perfStops = family.getMeasuredStops();
+                for (short trapID : family.perfStops) {
+                    if (family.getReachability(trapID) == TrapReachability.DEAD) {
+                        cfg.skippedPerfTraps.add(getPerfStopName(trapID));
+                    }
+                }
+                if (cfg.perfStops.length < family.perfStops.length) {
+                    System.out.println(String.format("%s: %d statically unreachable traps skipped", family.name, family.perfStops.length - cfg.perfStops.length));
+                }
+                cfg.perfStopComplete = family.perfStopComplete;
+                cfg.perfResultsSubparts.clear();
+                cfg.perfStore.registerTraps(cfg.perfStops);
+                CommandAPDU cmd = new CommandAPDU(family.trigger);
+                if (cfg.sweep == SweepStrategy.BISECT) {
+                    PerfBisectCommand(family.name, cmd, cardMngr, cfg, numRepeats);
+                } else if (fleet.size() > 1) {
+                    PerfFleetCommand(family.name, cmd, fleet, cfg, numRepeats);
+                } else {
+                    for (cfg.repeat = 0; cfg.repeat < numRepeats; cfg.repeat++) {
+                        PerfAnalyzeCommand(family.name, cmd, cardMngr, cfg);
+                    }
+                }
+                if (cfg.ciTargetWidth > 0) {
+                    PerfRefineCommand(family.name, cmd, cardMngr, cfg);
+                }
+                for (short trapID : PERF_HIT_TRAPS) {
+                    if (contains(family.perfStops, trapID)) {
+                        PerfAnalyzeHits(family.name, cmd, cardMngr, cfg, trapID, numRepeats);
+                    }
+                }
+                cfg.checkpoint.completedFamilies.add(family.name);
+                saveCheckpoint(cfg);
+            }
+            PrintSegmentStatistics(cfg);
+            PrintDriftStatistics(cfg);
 
             System.out.println("\n-------------- Performance profiling finished --------------\n\n");
             System.out.print("Disconnecting from card...");
-            cardMngr.DisconnectFromCard();
+            for (CardManager mngr : fleet) {
+                mngr.DisconnectFromCard();
+            }
             System.out.println(" Done.");
         } catch (Exception e) {
             e.printStackTrace();
+            saveCheckpoint(cfg);
+            System.out.println(String.format("Session interrupted, measured traps are kept. Continue by: JCProfiler_client --resume %s", experimentID));
+        } finally {
+            cfg.perfLog.close();
         }
 
         if (cfg.failedPerfTraps.size() > 0) {
@@ -83,97 +338,218 @@ public class PerfTests {
             System.out.println("ALL PERFORMANCE TRAPS REACHED CORRECTLY");
             System.out.println("##########################");
         }
+        if (cfg.skippedPerfTraps.size() > 0) {
+            System.out.println(String.format("%d traps not measured as unreachable by trigger command (static analysis of generator):", cfg.skippedPerfTraps.size()));
+            for (String trap : cfg.skippedPerfTraps) {
+                System.out.println(trap);
+            }
+        }
 
-        // Save performance traps into single file
+        // Export log of all samples and save performance traps into single file
+        new PerfSessionLog.Reader(logFileName).exportCsv(String.format("OC_PERF_log_%s.csv", experimentID));
         String perfFileName = String.format("TRAP_RAW_%s.csv", experimentID);
-        SavePerformanceResults(cfg.perfResultsSubpartsRaw, perfFileName);
+        SavePerformanceResults(cfg.perfStore, cfg.calibration, perfFileName);
+        if (!cfg.perfHitStores.isEmpty()) {
+            SaveHitCountResults(cfg.perfHitStores, String.format("TRAP_HITS_%s.csv", experimentID));
+        }
+        if (cfg.calibration.bCalibrated) {
+            SavePerformanceResults(cfg.calibration.store, null, String.format("TRAP_CALIB_%s.csv", experimentID));
+        }
 
         // If required, modification of source code files is attempted
         if (MODIFY_SOURCE_FILES_BY_PERF) {
-            String dirPath = "..\\Profiler_applet\\";
-            System.out.println(String.format("INFO: going to insert profiled info into files in '%s' directory", dirPath));
-            InsertPerfInfoIntoFiles(dirPath, cfg.cardName, experimentID, cfg.perfResultsSubpartsRaw);
+            InsertPerfInfoIntoFiles(PERF_TRAP_MAP, PERF_APPLET_DIR, cfg.cardName, experimentID, cfg.perfStore, cfg.calibration);
+        }
+    }
+
+    static boolean contains(short[] perfStops, short trapID) {
+        for (short perfStop : perfStops) {
+            if (perfStop == trapID) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static SimulatedCard CreateSimulator() throws Exception {
+        SimulatedApplet applet;
+        if (PERF_SIMULATOR_APPLET != null) {
+            applet = (SimulatedApplet) Class.forName(PERF_SIMULATOR_APPLET).getDeclaredConstructor().newInstance();
+        } else {
+            applet = new ScriptedApplet(PERF_SIMULATOR_SCRIPT, APDU_TRIGGER[1]);
+        }
+        return new SimulatedCard(applet, SimulatedCard.loadCosts(PERF_SIMULATOR_COSTS), INS_PERF_SETTRAPID, APDU_TRIGGER[1], PERF_SINGLE_APDU);
+    }
+
+    static final String PERF_RESULTS_HEADER = "trapID, previous trapID, time difference between trapID and previous trapID (ms), calibrated time difference (ms), below noise floor, samples, min (ns), median (ns), p90 (ns), p99 (ns), "
+            + "calibrated segment p50 (ms), calibrated segment p90 (ms), calibrated segment p99 (ms), calibrated segment max (ms), raw samples (ns)";
+
+    /**
+     * @return time (ns) of segment at percentile with the same measurement overhead removed as from calibrated median
+     */
+    static long calibratedSegmentPercentile(PerfSampleStore perfStore, PerfCalibration calibration, int index, double p) {
+        return perfStore.segmentPercentile(index, p) - ((calibration != null) ? calibration.segmentOverhead(perfStore, index) : 0);
+    }
+
+    /**
+     * @return calibrated segment percentile (ms) for results file, empty if not available
+     */
+    static String formatSegmentPercentile(PerfSampleStore perfStore, PerfCalibration calibration, int index, double p) {
+        if (!perfStore.hasSegmentDistribution(index)) {
+            return "";
         }
+        return String.format(Locale.ROOT, "%.3f", PerfStats.toMillis(calibratedSegmentPercentile(perfStore, calibration, index, p)));
     }
 
-    static void SavePerformanceResults(HashMap<Short, Pair<Short, Long>> perfResultsSubpartsRaw, String fileName) throws FileNotFoundException, IOException {
+    static void SavePerformanceResults(PerfSampleStore perfStore, PerfCalibration calibration, String fileName) throws FileNotFoundException, IOException {
         // Save performance traps into single file
-        FileOutputStream perfLog = new FileOutputStream(fileName);
-        String output = "trapID, previous trapID, time difference between trapID and previous trapID (ms)\n";
-        perfLog.write(output.getBytes());
-        for (Short perfID : perfResultsSubpartsRaw.keySet()) {
-            output = String.format("%d, %d, %d\n", perfID, perfResultsSubpartsRaw.get(perfID).getKey(), perfResultsSubpartsRaw.get(perfID).getValue());
-            perfLog.write(output.getBytes());
+        BufferedWriter perfLog = new BufferedWriter(new FileWriter(fileName));
+        perfLog.write(PERF_RESULTS_HEADER);
+        perfLog.write("\n");
+        for (int i = 0; i < perfStore.size(); i++) {
+            int count = perfStore.count(i);
+            if (count == 0) {
+                continue;
+            }
+            long calibrated = (calibration != null) ? calibration.calibratedSegment(perfStore, i) : perfStore.segmentMedian(i);
+            boolean bBelowNoise = (calibration != null) && calibration.isBelowNoiseFloor(calibrated);
+            perfLog.write(String.format(Locale.ROOT, "%d, %d, %.3f, %.3f, %s, %d, %d, %d, %d, %d, %s, %s, %s, %s, ", perfStore.getTrapID(i), perfStore.getPrevTrapID(i),
+                    PerfStats.toMillis(perfStore.segmentMedian(i)), PerfStats.toMillis(calibrated), bBelowNoise,
+                    count, perfStore.min(i), perfStore.median(i), perfStore.p90(i), perfStore.p99(i),
+                    formatSegmentPercentile(perfStore, calibration, i, 0.5), formatSegmentPercentile(perfStore, calibration, i, 0.9),
+                    formatSegmentPercentile(perfStore, calibration, i, 0.99), formatSegmentPercentile(perfStore, calibration, i, 1)));
+            for (int s = 0; s < count; s++) {
+                if (s > 0) {
+                    perfLog.write(' ');
+                }
+                perfLog.write(Long.toString(perfStore.sample(i, s)));
+            }
+            perfLog.write("\n");
         }
         perfLog.close();
     }
 
-    static void LoadPerformanceResults(String fileName, HashMap<Short, Pair<Short, Long>> perfResultsSubpartsRaw) throws FileNotFoundException, IOException {
+    static void SaveHitCountResults(HashMap<Short, PerfSampleStore> perfHitStores, String fileName) throws IOException {
+        BufferedWriter perfLog = new BufferedWriter(new FileWriter(fileName));
+        perfLog.write("trapID, occurrence, time difference between occurrence and previous occurrence (ms), median from start (ns), samples\n");
+        for (Short trapID : perfHitStores.keySet()) {
+            PerfSampleStore hits = perfHitStores.get(trapID);
+            for (int i = 0; i < hits.size() && hits.count(i) > 0; i++) {
+                perfLog.write(String.format(Locale.ROOT, "%d, %d, %.3f, %d, %d\n", trapID, hits.getTrapID(i),
+                        PerfStats.toMillis(hits.segmentMedian(i)), hits.median(i), hits.count(i)));
+            }
+        }
+        perfLog.close();
+    }
+
+    static void LoadPerformanceResults(String fileName, PerfSampleStore perfStore) throws FileNotFoundException, IOException {
         BufferedReader br = new BufferedReader(new FileReader(fileName));
+        HashMap<Short, Short> legacyPrev = new HashMap<>();
+        HashMap<Short, Double> legacyElapsed = new HashMap<>();
         String strLine;
         while ((strLine = br.readLine()) != null) {
             if (strLine.contains("trapID,")) {
                 // skip header line
             } else {
                 String[] cols = strLine.split(",");
-                Short perfID = Short.parseShort(cols[0].trim());
-                Short prevPerfID = Short.parseShort(cols[1].trim());
-                Long elapsed = Long.parseLong(cols[2].trim());
-
-                perfResultsSubpartsRaw.put(perfID, new Pair(prevPerfID, elapsed));
+                short perfID = Short.parseShort(cols[0].trim());
+                short prevPerfID = Short.parseShort(cols[1].trim());
+                if (cols.length > 3) {
+                    int index = perfStore.register(perfID, prevPerfID);
+                    for (String sample : cols[cols.length - 1].trim().split(" ")) { // raw samples are always last
+                        if (!sample.isEmpty()) {
+                            perfStore.add(index, Long.parseLong(sample));
+                        }
+                    }
+                } else {
+                    // old format with single time difference only (ms)
+                    legacyPrev.put(perfID, prevPerfID);
+                    legacyElapsed.put(perfID, Double.parseDouble(cols[2].trim()));
+                }
             }
         }
         br.close();
+
+        // time differences of old format are converted back to times from start of command
+        for (Short perfID : legacyPrev.keySet()) {
+            double elapsed = 0;
+            for (Short id = perfID; legacyElapsed.containsKey(id); id = legacyPrev.get(id)) {
+                elapsed += legacyElapsed.get(id);
+            }
+            int index = perfStore.register(perfID, legacyPrev.get(perfID));
+            perfStore.add(index, (long) (elapsed * PerfStats.NANOS_IN_MS));
+        }
     }
 
     public static byte[] shortToByteArray(int s) {
         return new byte[]{(byte) ((s & 0xFF00) >> 8), (byte) (s & 0x00FF)};
     }
 
+    /**
+     * Single repetition (round) of sweep over all traps of family in order given by cfg.scheduler.
+     * Segments of the round are printed in order of traps.
+     * @return time of last measured segment of the round (ns)
+     */
     long PerfAnalyzeCommand(String operationName, CommandAPDU cmd, CardManager cardMngr, PerfConfig cfg) throws CardException, IOException {
         System.out.println(operationName);
-        short prevPerfStop = PMC.PERF_START;
-        long prevTransmitTime = 0;
-        long lastFromPrevTime = 0;
+        int numTraps = cfg.perfStops.length;
+        long[] times = new long[numTraps];      // sum of times of trap in this round
+        int[] numTimes = new int[numTraps];
+        int[] failedSW = new int[numTraps];     // SW of unreached trap, 0 if reached
+        RoundSegments segments = new RoundSegments(cfg.perfStore, cfg.perfStops);
         try {
-            for (short trapID : cfg.perfStops) {
-                System.arraycopy(shortToByteArray(trapID), 0, APDU_SETTRAPID, CardManager.OFFSET_CDATA, 2); // set required stop condition
-                String operationNamePerf = String.format("%s_%s", operationName, getPerfStopName(trapID));
-                cardMngr.transmit(new CommandAPDU(APDU_SETTRAPID)); // set performance trap
-                ResponseAPDU response = cardMngr.transmit(cmd); // execute target operation
+            for (int position : cfg.scheduler.order(numTraps, cfg.repeat)) {
+                short trapID = cfg.perfStops[position];
+                if (cfg.failedPerfTraps.contains(getPerfStopName(trapID)) && cfg.perfFamily != null
+                        && cfg.perfFamily.getReachability(trapID) != TrapReachability.REACHABLE) {
+                    continue; // conditional trap not reached in previous repeat, card time is not spent again
+                }
+                if (isMeasuredBeforeResume(cfg, trapID)) {
+                    int index = cfg.perfStore.indexOf(trapID);
+                    if (numTimes[position] == 0 && cfg.perfStore.count(index) > 0) {
+                        times[position] = cfg.perfStore.median(index);
+                        numTimes[position] = 1;
+                    }
+                    continue;
+                }
+                ResponseAPDU response = transmitArmed(trapID, cmd, cardMngr, cfg); // set performance trap and execute target operation
                 boolean bFailedToReachTrap = false;
                 if (trapID != cfg.perfStopComplete) { // Check expected error to be equal performance trap
-                    if (response.getSW() != (trapID & 0xffff)) {
+                    if (!isTrapReached(trapID, response, cfg)) {
                         // we have not reached expected performance trap
-                        cfg.failedPerfTraps.add(getPerfStopName(trapID));
+                        if (!cfg.failedPerfTraps.contains(getPerfStopName(trapID))) {
+                            cfg.failedPerfTraps.add(getPerfStopName(trapID));
+                        }
                         bFailedToReachTrap = true;
                     }
                 }
-                writePerfLog(operationNamePerf, response.getSW() == (CardManager.SW_NO_ERROR & 0xffff), cardMngr.m_lastTransmitTime, cfg.perfResultsSingleOp, cfg.perfFile);
-                long fromPrevTime = cardMngr.m_lastTransmitTime - prevTransmitTime;
+                logSample(cfg, cardMngr, trapID, response, !bFailedToReachTrap);
                 if (bFailedToReachTrap) {
-                    cfg.perfResultsSubparts.add(String.format("[%s-%s], \tfailed to reach after %d ms (0x%x)", getPerfStopName(prevPerfStop), getPerfStopName(trapID), cardMngr.m_lastTransmitTime, response.getSW()));
-                } else {
-                    cfg.perfResultsSubparts.add(String.format("[%s-%s], \t%d ms", getPerfStopName(prevPerfStop), getPerfStopName(trapID), fromPrevTime));
-                    cfg.perfResultsSubpartsRaw.put(trapID, new Pair(prevPerfStop, fromPrevTime));
-                    lastFromPrevTime = fromPrevTime;
+                    failedSW[position] = response.getSW();
+                    times[position] = cardMngr.m_lastTransmitTimeNs;
+                    numTimes[position] = 1;
+                } else if (failedSW[position] == 0) {
+                    cfg.perfStore.add(trapID, cardMngr.m_lastTransmitTimeNs);
+                    segments.reached(position, cardMngr.m_lastTransmitTimeNs);
+                    cfg.drift.add(trapID, cfg.repeat, System.nanoTime(), cardMngr.m_lastTransmitTimeNs);
+                    times[position] += cardMngr.m_lastTransmitTimeNs;
+                    numTimes[position]++;
                 }
 
-                prevPerfStop = trapID;
-                prevTransmitTime = cardMngr.m_lastTransmitTime;
-
                 if (APDU_CLEANUP != null) {
                     cardMngr.transmit(new CommandAPDU(APDU_CLEANUP)); // free memory after command
                 }
             }
         } catch (Exception e) {
             // Print what we have measured so far
+            addRoundResults(cfg, times, numTimes, failedSW);
             for (String res : cfg.perfResultsSubparts) {
                 System.out.println(res);
             }
             throw e;
         }
         // Print measured performance info
+        long lastFromPrevTime = addRoundResults(cfg, times, numTimes, failedSW);
         for (String res : cfg.perfResultsSubparts) {
             System.out.println(res);
         }
@@ -181,97 +557,581 @@ public class PerfTests {
         return lastFromPrevTime;
     }
 
+    /**
+     * Adds segments of single round into cfg.perfResultsSubparts in order of traps.
+     * @return time of last measured segment (ns)
+     */
+    static long addRoundResults(PerfConfig cfg, long[] times, int[] numTimes, int[] failedSW) {
+        short prevPerfStop = PMC.PERF_START;
+        long prevTransmitTime = 0;
+        long lastFromPrevTime = 0;
+        for (int position = 0; position < cfg.perfStops.length; position++) {
+            if (numTimes[position] == 0) {
+                continue;
+            }
+            short trapID = cfg.perfStops[position];
+            long time = times[position] / numTimes[position];
+            if (failedSW[position] != 0) {
+                cfg.perfResultsSubparts.add(String.format("[%s-%s], \tfailed to reach after %.2f ms (0x%x)", getPerfStopName(prevPerfStop), getPerfStopName(trapID), PerfStats.toMillis(time), failedSW[position]));
+            } else {
+                lastFromPrevTime = time - prevTransmitTime;
+                cfg.perfResultsSubparts.add(String.format("[%s-%s], \t%.2f ms", getPerfStopName(prevPerfStop), getPerfStopName(trapID), PerfStats.toMillis(lastFromPrevTime)));
+            }
+            prevPerfStop = trapID;
+            prevTransmitTime = time;
+        }
+        return lastFromPrevTime;
+    }
+
+
+    /**
+     * Parallel sweep over fleet of identical cards. Every repetition is split into contiguous blocks of traps
+     * (one block per card), one worker thread per reader takes next (repetition, block) unit when finished
+     * with previous one. Block includes previous trap of its first trap, so every segment is measured on
+     * single card within one repetition. Every card collects own results which are merged afterwards,
+     * card-to-card differences are printed separately.
+     */
+    void PerfFleetCommand(final String operationName, final CommandAPDU cmd, List<CardManager> fleet, PerfConfig cfg, int numRepeats) throws Exception {
+        System.out.println(String.format("%s: fleet sweep on %d cards", operationName, fleet.size()));
+        final int numTraps = cfg.perfStops.length;
+        final int numBlocks = Math.max(1, Math.min(fleet.size(), numTraps));
+        final AtomicInteger nextUnit = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(fleet.size());
+        ArrayList<Future<PerfConfig>> results = new ArrayList<>();
+        for (final CardManager mngr : fleet) {
+            final PerfConfig cardCfg = new PerfConfig();
+            cardCfg.perfStops = cfg.perfStops;
+            cardCfg.perfStopComplete = cfg.perfStopComplete;
+            cardCfg.bSingleApduArming = cfg.bSingleApduArming; // cards of fleet are identical
+            cardCfg.perfLog = cfg.perfLog; // shared by all cards
+            cardCfg.checkpoint = cfg.checkpoint;
+            cardCfg.perfStore.registerTraps(cfg.perfStops);
+            results.add(executor.submit(new Callable<PerfConfig>() {
+                @Override
+                public PerfConfig call() throws Exception {
+                    int unit;
+                    while ((unit = nextUnit.getAndIncrement()) < numRepeats * numBlocks) {
+                        int block = unit % numBlocks;
+                        int first = Math.max(0, block * numTraps / numBlocks - 1); // previous trap of the block
+                        int last = (block + 1) * numTraps / numBlocks - 1;
+                        RoundSegments segments = new RoundSegments(cardCfg.perfStore, cardCfg.perfStops);
+                        for (int position : cfg.scheduler.order(numTraps, unit / numBlocks)) {
+                            if (position < first || position > last) {
+                                continue;
+                            }
+                            long time = measureTrap(cmd, mngr, cardCfg, cardCfg.perfStops[position], 1);
+                            if (time >= 0) {
+                                segments.reached(position, time);
+                            }
+                        }
+                    }
+                    return cardCfg;
+                }
+            }));
+        }
+        executor.shutdown();
+
+        for (Future<PerfConfig> result : results) {
+            PerfConfig cardCfg = result.get();
+            cfg.perfCardStores.add(cardCfg.perfStore);
+            cfg.perfStore.addAll(cardCfg.perfStore);
+            for (String trap : cardCfg.failedPerfTraps) {
+                if (!cfg.failedPerfTraps.contains(trap)) {
+                    cfg.failedPerfTraps.add(trap);
+                }
+            }
+        }
+        PrintFleetStatistics(cfg);
+    }
+
+    /**
+     * Prints median of every segment measured on every card and spread between cards.
+     */
+    static void PrintFleetStatistics(PerfConfig cfg) {
+        System.out.println("segment, median per card (ms), max card-to-card difference (ms)");
+        for (int i = 0; i < cfg.perfStore.size(); i++) {
+            StringBuilder perCard = new StringBuilder();
+            double min = Double.MAX_VALUE;
+            double max = -Double.MAX_VALUE;
+            for (PerfSampleStore cardStore : cfg.perfCardStores) {
+                int index = cardStore.indexOf(cfg.perfStore.getTrapID(i));
+                int prevIndex = cardStore.indexOf(cfg.perfStore.getPrevTrapID(i));
+                if (index < 0 || cardStore.count(index) == 0 || (prevIndex >= 0 && cardStore.count(prevIndex) == 0)) { // segment not measured on card
+                    perCard.append(" -");
+                    continue;
+                }
+                double segment = PerfStats.toMillis(cardStore.segmentMedian(index));
+                perCard.append(String.format(" %.2f", segment));
+                min = Math.min(min, segment);
+                max = Math.max(max, segment);
+            }
+            System.out.println(String.format("[%s-%s], \t%s, \t%.2f ms", getPerfStopName(cfg.perfStore.getPrevTrapID(i)), getPerfStopName(cfg.perfStore.getTrapID(i)),
+                    perCard.toString().trim(), (max >= min) ? max - min : 0));
+        }
+    }
+
+    /**
+     * Coarse-to-fine sweep. Sparse subset of traps (PERF_BISECT_INITIAL_TRAPS) is measured first,
+     * then every interval between measured traps with time difference above cfg.bisectThreshold
+     * (or with unreached border trap) is split in half and refined recursively. Traps inside flat
+     * intervals are never measured, measured traps are chained so that segments span skipped ones.
+     * @return number of measured traps
+     */
+    int PerfBisectCommand(String operationName, CommandAPDU cmd, CardManager cardMngr, PerfConfig cfg, int numRepeats) throws CardException, IOException {
+        System.out.println(operationName);
+        int numTraps = cfg.perfStops.length;
+        boolean[] measured = new boolean[numTraps];
+        ArrayList<int[]> intervals = new ArrayList<>();
+        int step = Math.max(1, numTraps / PERF_BISECT_INITIAL_TRAPS);
+        int prev = -1; // -1 == PERF_START (time 0)
+        for (int i = step - 1; prev < numTraps - 1; i = Math.min(i + step, numTraps - 1)) {
+            measureTrap(cmd, cardMngr, cfg, cfg.perfStops[i], numRepeats);
+            measured[i] = true;
+            intervals.add(new int[]{prev, i});
+            prev = i;
+        }
+        while (!intervals.isEmpty()) {
+            int[] interval = intervals.remove(intervals.size() - 1);
+            int from = interval[0];
+            int to = interval[1];
+            if (to - from <= 1) {
+                continue;
+            }
+            long fromTime = (from < 0) ? 0 : cfg.perfStore.median(cfg.perfStore.indexOf(cfg.perfStops[from]));
+            long toTime = cfg.perfStore.median(cfg.perfStore.indexOf(cfg.perfStops[to]));
+            boolean bUnknown = (fromTime < 0) || (toTime < 0); // border trap not reached
+            if (bUnknown || PerfStats.toMillis(toTime - fromTime) > cfg.bisectThreshold) {
+                int mid = bisectProbe(from, to, cfg);
+                measureTrap(cmd, cardMngr, cfg, cfg.perfStops[mid], numRepeats);
+                measured[mid] = true;
+                intervals.add(new int[]{from, mid});
+                intervals.add(new int[]{mid, to});
+            }
+        }
+
+        // chain measured traps, segment of trap after skipped (flat) interval starts at last measured trap
+        int numMeasured = 0;
+        short prevPerfStop = PMC.PERF_START;
+        for (int i = 0; i < numTraps; i++) {
+            if (measured[i]) {
+                cfg.perfStore.register(cfg.perfStops[i], prevPerfStop);
+                prevPerfStop = cfg.perfStops[i];
+                numMeasured++;
+            }
+        }
+        System.out.println(String.format("%s: bisection sweep measured %d of %d traps", operationName, numMeasured, numTraps));
+        return numMeasured;
+    }
+
+    /**
+     * @return trap inside interval (from, to) used to split it, trap nearest to the middle which is
+     * always reached (not conditional) is preferred, so the split is not wasted by unreached trap
+     */
+    static int bisectProbe(int from, int to, PerfConfig cfg) {
+        int mid = (from + to) / 2;
+        for (int distance = 0; cfg.perfFamily != null && distance < to - from; distance++) {
+            for (int i : new int[]{mid - distance, mid + distance}) {
+                if (i > from && i < to && cfg.perfFamily.getReachability(cfg.perfStops[i]) == TrapReachability.REACHABLE) {
+                    return i;
+                }
+            }
+        }
+        return mid;
+    }
 
-    static void writePerfLog(String operationName, boolean bResult, Long time, ArrayList<Pair<String, Long>> perfResults, FileOutputStream perfFile) throws IOException {
-        perfResults.add(new Pair(operationName, time));
-        perfFile.write(String.format("%s,%d,%s\n", operationName, time, bResult).getBytes());
-        perfFile.flush();
+    /**
+     * @return time of last reached measurement (ns), -1 if trap was not reached
+     */
+    long measureTrap(CommandAPDU cmd, CardManager cardMngr, PerfConfig cfg, short trapID, int numRepeats) throws CardException, IOException {
+        long time = -1;
+        for (int repeat = 0; repeat < numRepeats; repeat++) {
+            if (isMeasuredBeforeResume(cfg, trapID)) {
+                continue;
+            }
+            ResponseAPDU response = transmitArmed(trapID, cmd, cardMngr, cfg);
+            boolean bReached = isTrapReached(trapID, response, cfg);
+            logSample(cfg, cardMngr, trapID, response, bReached);
+            if (bReached) {
+                cfg.perfStore.add(trapID, cardMngr.m_lastTransmitTimeNs);
+                time = cardMngr.m_lastTransmitTimeNs;
+            } else if (!cfg.failedPerfTraps.contains(getPerfStopName(trapID))) {
+                cfg.failedPerfTraps.add(getPerfStopName(trapID));
+            }
+            if (APDU_CLEANUP != null) {
+                cardMngr.transmit(new CommandAPDU(APDU_CLEANUP)); // free memory after command
+            }
+        }
+        return time;
     }
 
-    static void InsertPerfInfoIntoFiles(String basePath, String cardName, String experimentID, HashMap<Short, Pair<Short, Long>> perfResultsSubpartsRaw) throws FileNotFoundException, IOException {
-        File dir = new File(basePath);
-        String[] filesArray = dir.list();
-        if ((filesArray != null) && dir.isDirectory()) {
-            // make subdir for results
-            String outputDir = String.format("%s/perf/%s/", basePath, experimentID);
-            new File(outputDir).mkdirs();
+    /**
+     * Adaptive re-measurement. Every trap with segment (difference to previous trap) not yet
+     * measured precisely enough (less than cfg.minRepeats samples or confidence interval of median
+     * wider than cfg.ciTargetWidth) is measured again, together with its previous trap. Stable segments
+     * are not measured anymore, noisy ones get more repeats. Stops when all segments converged, traps
+     * reached cfg.maxRepeats or cfg.timeBudget is exhausted.
+     */
+    void PerfRefineCommand(String operationName, CommandAPDU cmd, CardManager cardMngr, PerfConfig cfg) throws CardException, IOException {
+        long deadline = System.currentTimeMillis() + cfg.timeBudget;
+        int pass = 0;
+        while (System.currentTimeMillis() < deadline) {
+            ArrayList<Short> toMeasure = new ArrayList<>();
+            for (short trapID : cfg.perfStops) {
+                int index = cfg.perfStore.indexOf(trapID);
+                if (cfg.perfStore.count(index) == 0) {
+                    continue; // not reached
+                }
+                short prevPerfStop = cfg.perfStore.getPrevTrapID(index);
+                int prevIndex = cfg.perfStore.indexOf(prevPerfStop);
+                int minCount = Math.min(cfg.perfStore.count(index), (prevIndex >= 0) ? cfg.perfStore.count(prevIndex) : Integer.MAX_VALUE);
+                double width = PerfStats.toMillis(cfg.perfStore.segmentConfidenceWidth(index));
+                if (minCount >= cfg.minRepeats && width <= cfg.ciTargetWidth) {
+                    continue; // converged
+                }
+                for (short perfStop : new short[]{prevPerfStop, trapID}) {
+                    int stopIndex = cfg.perfStore.indexOf(perfStop);
+                    int count = (stopIndex >= 0) ? cfg.perfStore.count(stopIndex) : 0;
+                    if (count > 0 && count < cfg.maxRepeats && !toMeasure.contains(perfStop)) {
+                        toMeasure.add(perfStop);
+                    }
+                }
+            }
+            if (toMeasure.isEmpty()) {
+                break;
+            }
+            pass++;
+            System.out.println(String.format("%s: refinement pass %d, %d traps not converged (%.2f ms confidence interval, %d samples)", operationName, pass, toMeasure.size(), cfg.ciTargetWidth, cfg.minRepeats));
+            for (short trapID : toMeasure) {
+                if (System.currentTimeMillis() >= deadline) {
+                    break;
+                }
+                measureTrap(cmd, cardMngr, cfg, trapID, 1);
+            }
+        }
+        if (System.currentTimeMillis() >= deadline) {
+            System.out.println(String.format("WARNING: time budget of %d ms for adaptive measurement exhausted", cfg.timeBudget));
+        }
+    }
 
-            for (String fileName : filesArray) {
-                File dir2 = new File(basePath + fileName);
-                if (!dir2.isDirectory()) {
-                    InsertPerfInfoIntoFile(String.format("%s/%s", basePath, fileName), cardName, experimentID, outputDir, perfResultsSubpartsRaw);
+    /**
+     * Measures trap placed inside loop or repeatedly called method for its 1st, 2nd ... n-th occurrence
+     * (hit count is send together with trapID, card passes the trap until required occurrence is reached).
+     * Difference between consecutive occurrences gives cost of single iteration.
+     */
+    void PerfAnalyzeHits(String operationName, CommandAPDU cmd, CardManager cardMngr, PerfConfig cfg, short trapID, int numRepeats) throws CardException, IOException {
+        System.out.println(String.format("%s: hit-count profiling of %s", operationName, getPerfStopName(trapID)));
+        PerfSampleStore hits = cfg.perfHitStores.computeIfAbsent(trapID, id -> new PerfSampleStore()); // samples measured before resume are loaded
+        short occurrence;
+        for (occurrence = 1; occurrence <= PERF_MAX_HITS; occurrence++) {
+            int index = hits.register(occurrence, (short) (occurrence - 1));
+            for (int repeat = 0; repeat < numRepeats; repeat++) {
+                if (cfg.checkpoint != null && cfg.checkpoint.replayHit(trapID, occurrence)) {
+                    continue;
                 }
+                System.arraycopy(shortToByteArray(trapID), 0, APDU_SETTRAPID_HIT, CardManager.OFFSET_CDATA, 2);
+                System.arraycopy(shortToByteArray(occurrence), 0, APDU_SETTRAPID_HIT, CardManager.OFFSET_CDATA + 2, 2);
+                cardMngr.transmit(new CommandAPDU(APDU_SETTRAPID_HIT));
+                ResponseAPDU response = cardMngr.transmit(cmd);
+                boolean bReached = response.getSW() == (trapID & 0xffff);
+                logHitSample(cfg, cardMngr, trapID, occurrence, response, bReached);
+                if (bReached) {
+                    hits.add(index, cardMngr.m_lastTransmitTimeNs);
+                }
+                if (APDU_CLEANUP != null) {
+                    cardMngr.transmit(new CommandAPDU(APDU_CLEANUP)); // free memory after command
+                }
+            }
+            if (hits.count(index) == 0) {
+                break; // occurrence not reached anymore
+            }
+        }
+        int reached = occurrence - 1;
+        if (reached == 0) {
+            System.out.println(String.format("  %s not reached", getPerfStopName(trapID)));
+            return;
+        }
+        System.out.println(String.format("  occurrences reached: %d%s", reached, (reached == PERF_MAX_HITS) ? " (PERF_MAX_HITS limit)" : ""));
+        System.out.println(String.format("  #1: \t%.2f ms from start", PerfStats.toMillis(hits.median(0))));
+        for (int i = 1; i < reached; i++) {
+            System.out.println(String.format("  #%d: \t%.2f ms per iteration", i + 1, PerfStats.toMillis(hits.segmentMedian(i))));
+        }
+        if (reached > 1) {
+            double amortized = (hits.median(reached - 1) - hits.median(0)) / (double) (reached - 1);
+            System.out.println(String.format("  amortized: \t%.2f ms per iteration", PerfStats.toMillis(amortized)));
+        }
+    }
+
+    /**
+     * Prints mean difference of every repetition from medians of traps and trend over session.
+     */
+    static void PrintDriftStatistics(PerfConfig cfg) {
+        if (cfg.drift.getNumRounds() < 2) {
+            return;
+        }
+        System.out.println(String.format("drift estimate (%s order), difference of repetition from trap medians:", PERF_ORDER));
+        double[] offsets = cfg.drift.roundOffsets(cfg.perfStore);
+        for (int round = 0; round < offsets.length; round++) {
+            if (!Double.isNaN(offsets[round])) {
+                System.out.println(String.format("repeat %d, \t%+.3f ms", round + 1, PerfStats.toMillis(offsets[round])));
+            }
+        }
+        System.out.println(String.format("trend, \t%+.3f ms per minute", PerfStats.toMillis(cfg.drift.trend(cfg.perfStore))));
+    }
+
+    /**
+     * @return calibrated p50 / p90 / p99 / max of segment samples (differences measured in the same round), n/a if not available
+     */
+    static String formatSegmentPercentiles(PerfSampleStore perfStore, PerfCalibration calibration, int index) {
+        if (!perfStore.hasSegmentDistribution(index)) {
+            return "n/a";
+        }
+        return String.format("%.2f / %.2f / %.2f / %.2f ms", PerfStats.toMillis(calibratedSegmentPercentile(perfStore, calibration, index, 0.5)),
+                PerfStats.toMillis(calibratedSegmentPercentile(perfStore, calibration, index, 0.9)), PerfStats.toMillis(calibratedSegmentPercentile(perfStore, calibration, index, 0.99)),
+                PerfStats.toMillis(calibratedSegmentPercentile(perfStore, calibration, index, 1)));
+    }
+
+    /**
+     * Prints median time of every segment together with its confidence interval and distribution of times.
+     */
+    static void PrintSegmentStatistics(PerfConfig cfg) {
+        System.out.println("segment, median (ms), calibrated (ms), 95% CI (ms), min / p90 / p99 from start (ms), calibrated segment p50 / p90 / p99 / max (ms), samples");
+        for (int i = 0; i < cfg.perfStore.size(); i++) {
+            if (cfg.perfStore.count(i) == 0) {
+                continue;
             }
+            long calibrated = cfg.calibration.calibratedSegment(cfg.perfStore, i);
+            System.out.println(String.format("[%s-%s], \t%.2f ms, \t%.2f ms%s, \t+-%.2f ms, \t%.2f / %.2f / %.2f ms, \t%s, \t%d",
+                    getPerfStopName(cfg.perfStore.getPrevTrapID(i)), getPerfStopName(cfg.perfStore.getTrapID(i)),
+                    PerfStats.toMillis(cfg.perfStore.segmentMedian(i)), PerfStats.toMillis(calibrated),
+                    cfg.calibration.isBelowNoiseFloor(calibrated) ? " (below noise floor)" : "",
+                    PerfStats.toMillis(cfg.perfStore.segmentConfidenceWidth(i) / 2),
+                    PerfStats.toMillis(cfg.perfStore.min(i)), PerfStats.toMillis(cfg.perfStore.p90(i)), PerfStats.toMillis(cfg.perfStore.p99(i)),
+                    formatSegmentPercentiles(cfg.perfStore, cfg.calibration, i), cfg.perfStore.count(i)));
+        }
+    }
+
+    /**
+     * Sets performance trap and executes target operation. With single-APDU arming (detected once
+     * per session by detectSingleApduArming), trapID is send in P1/P2 of target command, otherwise
+     * two-APDU protocol (APDU_SETTRAPID followed by target command) is used.
+     */
+    ResponseAPDU transmitArmed(short trapID, CommandAPDU cmd, CardManager cardMngr, PerfConfig cfg) throws CardException {
+        if (cfg.bSingleApduArming) {
+            return transmitArmedSingleApdu(trapID, cmd, cardMngr);
+        }
+        return transmitArmedTwoApdu(trapID, cmd, cardMngr);
+    }
+
+    ResponseAPDU transmitArmedSingleApdu(short trapID, CommandAPDU cmd, CardManager cardMngr) throws CardException {
+        byte[] armedCmd = cmd.getBytes();
+        System.arraycopy(shortToByteArray(trapID), 0, armedCmd, OFFSET_P1, 2);
+        return cardMngr.transmit(new CommandAPDU(armedCmd));
+    }
+
+    /**
+     * Finds out whether applet calls PM.arm(). Previous trap is erased and always reachable trap is armed
+     * by P1/P2 only - reaching it proves support. If it is not reached, but is reached by APDU_SETTRAPID,
+     * arming is not supported. Next trap is tried if trap is not reached by any of them.
+     * @return true if single-APDU arming can be used for whole session
+     */
+    boolean detectSingleApduArming(CardManager cardMngr, PerfConfig cfg) throws CardException {
+        for (PerfTrapFamily family : cfg.perfFamilies) {
+            CommandAPDU cmd = new CommandAPDU(family.trigger);
+            for (short trapID : family.perfStops) {
+                if (trapID == family.perfStopComplete || family.getReachability(trapID) != TrapReachability.REACHABLE) {
+                    continue;
+                }
+                cardMngr.transmit(new CommandAPDU(APDU_SETTRAPID_NONE));
+                boolean bArmed = transmitArmedSingleApdu(trapID, cmd, cardMngr).getSW() == (trapID & 0xffff);
+                boolean bReached = bArmed || transmitArmedTwoApdu(trapID, cmd, cardMngr).getSW() == (trapID & 0xffff);
+                cardMngr.transmit(new CommandAPDU(APDU_SETTRAPID_NONE));
+                if (APDU_CLEANUP != null) {
+                    cardMngr.transmit(new CommandAPDU(APDU_CLEANUP));
+                }
+                if (bReached) {
+                    System.out.println(bArmed ? "INFO: single-APDU arming supported by applet"
+                            : "INFO: single-APDU arming not supported by applet, APDU_SETTRAPID is used");
+                    return bArmed;
+                }
+            }
+        }
+        System.out.println("INFO: no trap reached while detecting single-APDU arming, APDU_SETTRAPID is used");
+        return false;
+    }
+
+    ResponseAPDU transmitArmedTwoApdu(short trapID, CommandAPDU cmd, CardManager cardMngr) throws CardException {
+        byte[] setTrapID = APDU_SETTRAPID.clone(); // local copy, may be called from multiple threads in fleet mode
+        System.arraycopy(shortToByteArray(trapID), 0, setTrapID, CardManager.OFFSET_CDATA, 2); // set required stop condition
+        cardMngr.transmit(new CommandAPDU(setTrapID)); // set performance trap
+        return cardMngr.transmit(cmd); // execute target operation
+    }
+
+    static boolean isTrapReached(short trapID, ResponseAPDU response, PerfConfig cfg) {
+        if (trapID == cfg.perfStopComplete) {
+            return response.getSW() == (CardManager.SW_NO_ERROR & 0xffff);
+        }
+        return response.getSW() == (trapID & 0xffff);
+    }
+
+    static void logSample(PerfConfig cfg, CardManager cardMngr, short trapID, ResponseAPDU response, boolean bReached) throws IOException {
+        if (cfg.perfLog != null) {
+            int index = cfg.perfStore.indexOf(trapID);
+            short prevTrapID = (index >= 0) ? cfg.perfStore.getPrevTrapID(index) : PMC.PERF_START;
+            synchronized (cfg.perfLog) {
+                boolean bFlushed = cfg.perfLog.record(trapID, prevTrapID, response.getSW(), cardMngr.m_cardIndex, bReached ? PerfSessionLog.FLAG_REACHED : 0, cardMngr.m_lastTransmitTimeNs);
+                if (cfg.checkpoint != null) {
+                    cfg.checkpoint.update(trapID, bReached, getPerfStopName(trapID));
+                    if (bFlushed) {
+                        cfg.checkpoint.save(cfg.perfLog.getNumRecords()); // checkpoint covers only records already in file
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Logs single measurement of given occurrence of hit-count trap.
+     */
+    static void logHitSample(PerfConfig cfg, CardManager cardMngr, short trapID, short occurrence, ResponseAPDU response, boolean bReached) throws IOException {
+        if (cfg.perfLog != null) {
+            synchronized (cfg.perfLog) {
+                int flags = PerfSessionLog.FLAG_HIT | (bReached ? PerfSessionLog.FLAG_REACHED : 0);
+                boolean bFlushed = cfg.perfLog.record(trapID, occurrence, response.getSW(), cardMngr.m_cardIndex, flags, cardMngr.m_lastTransmitTimeNs);
+                if (cfg.checkpoint != null) {
+                    cfg.checkpoint.updateHit(trapID, occurrence);
+                    if (bFlushed) {
+                        cfg.checkpoint.save(cfg.perfLog.getNumRecords());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Every measurement of trap (by any sweep strategy) is requested through this check, resumed session
+     * requests measurements in the same order, so first ones are those done before resume.
+     * @return true if this measurement was performed before session was resumed (its sample is already loaded from log)
+     */
+    static boolean isMeasuredBeforeResume(PerfConfig cfg, short trapID) {
+        return cfg.checkpoint != null && cfg.checkpoint.replay(trapID);
+    }
+
+    static void saveCheckpoint(PerfConfig cfg) throws IOException {
+        synchronized (cfg.perfLog) {
+            cfg.perfLog.flush();
+            cfg.checkpoint.save(cfg.perfLog.getNumRecords());
+        }
+    }
+
+    /**
+     * Exports binary session log (e.g., of session interrupted by crash) into OC_PERF_log_id.csv
+     * and TRAP_RAW_id.csv next to it.
+     */
+    static void ExportSessionLog(String logPath) throws IOException {
+        buildPerfMapping();
+        PerfSessionLog.Reader log = new PerfSessionLog.Reader(logPath);
+        String basePath = logPath.endsWith(".bin") ? logPath.substring(0, logPath.length() - ".bin".length()) : logPath;
+        log.exportCsv(basePath + ".csv");
+        PerfSampleStore perfStore = new PerfSampleStore();
+        log.loadSamples(perfStore);
+        File rawFile = new File(new File(basePath).getAbsoluteFile().getParentFile(), new File(basePath).getName().replace("OC_PERF_log_", "TRAP_RAW_") + ".csv");
+        SavePerformanceResults(perfStore, null, rawFile.getPath());
+        HashMap<Short, PerfSampleStore> perfHitStores = new HashMap<>();
+        log.loadHitSamples(perfHitStores);
+        if (!perfHitStores.isEmpty()) {
+            SaveHitCountResults(perfHitStores, new File(rawFile.getParentFile(), rawFile.getName().replace("TRAP_RAW_", "TRAP_HITS_")).getPath());
+        }
+        System.out.println(String.format("INFO: %d samples of session log '%s' (card %s) exported into '%s.csv' and '%s'", log.size(), logPath, log.cardName, basePath, rawFile.getPath()));
+    }
+
+    /**
+     * Writes copies of applet files with measured time appended as comment to every trap. Traps are located
+     * by trap source map of generator, so only lines with traps are touched.
+     * @param appletDir directory with generated applet files, null = directory recorded in map
+     */
+    static void InsertPerfInfoIntoFiles(String mapPath, String appletDir, String cardName, String experimentID, PerfSampleStore perfStore, PerfCalibration calibration) throws IOException {
+        TrapSourceMap map;
+        try {
+            map = new TrapSourceMap(mapPath);
+        } catch (IOException e) {
+            System.out.println(String.format("Failed to load trap source map '%s', source files not annotated: %s", mapPath, e.getMessage()));
+            return;
+        }
+        String basePath = (appletDir != null) ? appletDir : map.getAppletDir();
+        if (basePath == null) {
+            System.out.println(String.format("Directory of applet files not set and not found in '%s', source files not annotated", mapPath));
+            return;
+        }
+        // make subdir for results
+        String outputDir = String.format("%s/perf/%s/", basePath, experimentID);
+        new File(outputDir).mkdirs();
+        System.out.println(String.format("INFO: going to insert profiled info into files in '%s' directory", basePath));
+        for (Map.Entry<String, List<TrapSourceMap.Entry>> file : map.getEntriesByFile().entrySet()) {
+            InsertPerfInfoIntoFile(String.format("%s/%s", basePath, file.getKey()), file.getValue(), cardName, experimentID, outputDir, perfStore, calibration);
         }
     }
 
     static final String PERF_TRAP_CALL = "PM.check(PMC.";
     static final String PERF_TRAP_CALL_END = ");";
 
-    static void InsertPerfInfoIntoFile(String filePath, String cardName, String experimentID, String outputDir, HashMap<Short, Pair<Short, Long>> perfResultsSubpartsRaw) throws FileNotFoundException, IOException {
+    static void InsertPerfInfoIntoFile(String filePath, List<TrapSourceMap.Entry> traps, String cardName, String experimentID, String outputDir, PerfSampleStore perfStore, PerfCalibration calibration) {
         try {
-            BufferedReader br = new BufferedReader(new FileReader(filePath));
-            String basePath = filePath.substring(0, filePath.lastIndexOf("/"));
-            String fileName = filePath.substring(filePath.lastIndexOf("/"));
-
-            String fileNamePerf = String.format("%s/%s", outputDir, fileName);
-            FileOutputStream fileOut = new FileOutputStream(fileNamePerf);
-            String strLine;
-            String resLine;
-            // For every line of program try to find perfromance trap. If found and perf. is available, then insert comment into code
-            while ((strLine = br.readLine()) != null) {
-
-                if (strLine.contains(PERF_TRAP_CALL)) {
-                    int trapStart = strLine.indexOf(PERF_TRAP_CALL);
-                    int trapEnd = strLine.indexOf(PERF_TRAP_CALL_END);
-                    // We have perf. trap, now check if we also corresponding measurement
-                    String perfTrapName = (String) strLine.substring(trapStart + PERF_TRAP_CALL.length(), trapEnd);
-                    short perfID = getPerfStopFromName(perfTrapName);
-
-                    if (perfResultsSubpartsRaw.containsKey(perfID)) {
-                        // We have measurement for this trap, add into comment section
-                        resLine = String.format("%s // %d ms (%s,%s) %s", (String) strLine.substring(0, trapEnd + PERF_TRAP_CALL_END.length()), perfResultsSubpartsRaw.get(perfID).getValue(), cardName, experimentID, (String) strLine.subSequence(trapEnd + PERF_TRAP_CALL_END.length(), strLine.length()));
-                    } else {
-                        resLine = strLine;
-                    }
-                } else {
-                    resLine = strLine;
+            List<String> lines = Files.readAllLines(Paths.get(filePath), StandardCharsets.UTF_8);
+            for (TrapSourceMap.Entry trap : traps) {
+                int index = perfStore.indexOf(trap.trapID);
+                if (index < 0 || perfStore.count(index) == 0) {
+                    continue;
                 }
-                resLine += "\n";
-                fileOut.write(resLine.getBytes());
+                // We have measurement for this trap, add into comment section
+                String strLine = (trap.line <= lines.size()) ? lines.get(trap.line - 1) : "";
+                int trapStart = trap.column - 1;
+                if (!strLine.startsWith(PERF_TRAP_CALL + trap.name + PERF_TRAP_CALL_END, trapStart)) {
+                    System.out.println(String.format("Trap %s not found at %s:%d, file changed after generation?", trap.name, filePath, trap.line));
+                    continue;
+                }
+                int trapEnd = trapStart + PERF_TRAP_CALL.length() + trap.name.length() + PERF_TRAP_CALL_END.length();
+                long calibrated = calibration.calibratedSegment(perfStore, index);
+                String noise = calibration.isBelowNoiseFloor(calibrated) ? ", below noise floor" : "";
+                String distribution = (perfStore.count(index) > 1 && perfStore.hasSegmentDistribution(index)) ? String.format(" (p50 / p90 / p99 / max %s)", formatSegmentPercentiles(perfStore, calibration, index)) : "";
+                lines.set(trap.line - 1, String.format("%s // %.2f ms%s (%s,%s%s) %s", strLine.substring(0, trapEnd), PerfStats.toMillis(calibrated), distribution, cardName, experimentID, noise, strLine.substring(trapEnd)));
             }
-
-            fileOut.close();
+            Files.write(Paths.get(outputDir, new File(filePath).getName()), lines, StandardCharsets.UTF_8);
         } catch (Exception e) {
             System.out.println(String.format("Failed to transform file %s ", filePath) + e);
         }
     }
 
-    public static HashMap<Short, String> PERF_TRAPS_MAPPING = new HashMap<>();
+    public static final String[] PERF_TRAPS_MAPPING = new String[0x10000]; // trapID -> name, null if not known
+    public static final LinkedHashMap<String, short[]> PERF_TRAP_FAMILIES = new LinkedHashMap<>(); // base name -> traps of family (without complete)
 
     public static void buildPerfMapping() {
-        PERF_TRAPS_MAPPING.put(PMC.PERF_START, "PERF_START");
+        addPerfMapping(PMC.PERF_START, "PERF_START");
 
 //### PLACEHOLDER PMC MAPPINGS
 
     }
 
-    public static String getPerfStopName(short stopID) {
-        if (PERF_TRAPS_MAPPING.containsKey(stopID)) {
-            return PERF_TRAPS_MAPPING.get(stopID);
-        } else {
-            assert (false);
-            return "PERF_UNDEFINED";
+    public static void addPerfMapping(short stopID, String stopName) {
+        PERF_TRAPS_MAPPING[stopID & 0xffff] = stopName;
+    }
+
+    /**
+     * Adds names of whole trap family: baseName_COMPLETE and baseName_1 .. baseName_n in order of given traps.
+     */
+    public static void addPerfMapping(String baseName, short perfStopComplete, short... perfStops) {
+        PERF_TRAP_FAMILIES.put(baseName, perfStops);
+        addPerfMapping(perfStopComplete, baseName + "_COMPLETE");
+        for (int i = 0; i < perfStops.length; i++) {
+            addPerfMapping(perfStops[i], String.format("%s_%d", baseName, i + 1));
         }
     }
 
-    public static short getPerfStopFromName(String stopName) {
-        for (Short stopID : PERF_TRAPS_MAPPING.keySet()) {
-            if (PERF_TRAPS_MAPPING.get(stopID).equalsIgnoreCase(stopName)) {
-                return stopID;
-            }
+    public static String getPerfStopName(short stopID) {
+        String stopName = PERF_TRAPS_MAPPING[stopID & 0xffff];
+        if (stopName == null) {
+            assert (false);
+            return "PERF_UNDEFINED";
         }
-        assert (false);
-        return PMC.TRAP_UNDEFINED;
+        return stopName;
     }
 }
@@ -0,0 +1,185 @@
+package jcprofiler;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Simulated applet given by simple script executed when APDU_TRIGGER is received. One statement per line:
+ *   call NAME    - JavaCard API call charged by cost api.NAME
+ *   trap NAME    - PM.check(PMC.NAME)
+ *   loop N       - repeat following statements (until matching 'end') N times
+ *   end
+ * Empty lines and lines starting with '#' are ignored. If no script is given, traps of all generated trap
+ * families (PerfTests.PERF_TRAP_FAMILIES) are executed in their order, every one preceded and the last one
+ * also followed by 'call segment' (default cost 1 ms). The script only models timing of the applet, generated instrumentation of the real
+ * applet is not executed.
+ */
+public class ScriptedApplet implements SimulatedApplet {
+    static final long DEFAULT_SEGMENT_COST = 1000000;
+
+    static final int OP_CALL = 0;
+    static final int OP_TRAP = 1;
+    static final int OP_LOOP = 2;
+    static final int OP_END = 3;
+
+    // compiled script, every statement as (opcode, argument, jump target of loop/end)
+    private final ArrayList<String> apiNames = new ArrayList<>();
+    private int[] ops = new int[16];
+    private int[] args = new int[16];
+    private int[] jumps = new int[16];
+    private int numOps = 0;
+    private final byte m_triggerIns;
+
+    public ScriptedApplet(String scriptFile, byte triggerIns) throws IOException {
+        m_triggerIns = triggerIns;
+        if (scriptFile != null) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(scriptFile))) {
+                String line;
+                int lineNumber = 0;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    parseLine(line.trim(), lineNumber);
+                }
+            }
+        } else {
+            for (short trapID : getFamilyTraps()) {
+                emit(OP_CALL, apiIndex("segment"));
+                emit(OP_TRAP, trapID);
+            }
+            emit(OP_CALL, apiIndex("segment")); // segment between last trap and end of command
+        }
+        resolveLoops();
+    }
+
+    @Override
+    public void process(SimulatedCard card, byte[] apdu) throws SimulatedCard.ISOExceptionStub {
+        if (apdu[1] != m_triggerIns) {
+            return;
+        }
+        int[] remaining = new int[numOps]; // remaining iterations of loop started at given statement
+        int pc = 0;
+        while (pc < numOps) {
+            switch (ops[pc]) {
+                case OP_CALL:
+                    String apiName = apiNames.get(args[pc]);
+                    if (apiName.equals("segment")) {
+                        card.chargeNanos(card.getCost("api.segment", DEFAULT_SEGMENT_COST));
+                    } else {
+                        card.charge(apiName);
+                    }
+                    break;
+                case OP_TRAP:
+                    card.check((short) args[pc]);
+                    break;
+                case OP_LOOP:
+                    remaining[pc] = args[pc];
+                    if (remaining[pc] <= 0) {
+                        pc = jumps[pc];
+                    }
+                    break;
+                case OP_END:
+                    int loop = jumps[pc];
+                    if (--remaining[loop] > 0) {
+                        pc = loop;
+                    }
+                    break;
+            }
+            pc++;
+        }
+    }
+
+    private void parseLine(String line, int lineNumber) throws IOException {
+        if (line.isEmpty() || line.startsWith("#")) {
+            return;
+        }
+        String[] parts = line.split("\\s+");
+        String arg = (parts.length > 1) ? parts[1] : null;
+        switch (parts[0]) {
+            case "call":
+                emit(OP_CALL, apiIndex(requireArg(arg, lineNumber)));
+                break;
+            case "trap":
+                emit(OP_TRAP, getTrapID(requireArg(arg, lineNumber), lineNumber));
+                break;
+            case "loop":
+                emit(OP_LOOP, Integer.parseInt(requireArg(arg, lineNumber)));
+                break;
+            case "end":
+                emit(OP_END, 0);
+                break;
+            default:
+                throw new IOException(String.format("Unknown statement '%s' at line %d", parts[0], lineNumber));
+        }
+    }
+
+    private static String requireArg(String arg, int lineNumber) throws IOException {
+        if (arg == null) {
+            throw new IOException(String.format("Missing argument at line %d", lineNumber));
+        }
+        return arg;
+    }
+
+    private void emit(int op, int arg) {
+        if (numOps == ops.length) {
+            ops = Arrays.copyOf(ops, numOps * 2);
+            args = Arrays.copyOf(args, numOps * 2);
+            jumps = Arrays.copyOf(jumps, numOps * 2);
+        }
+        ops[numOps] = op;
+        args[numOps] = arg;
+        numOps++;
+    }
+
+    private int apiIndex(String apiName) {
+        int index = apiNames.indexOf(apiName);
+        if (index < 0) {
+            apiNames.add(apiName);
+            index = apiNames.size() - 1;
+        }
+        return index;
+    }
+
+    private void resolveLoops() throws IOException {
+        int[] stack = new int[numOps];
+        int depth = 0;
+        for (int pc = 0; pc < numOps; pc++) {
+            if (ops[pc] == OP_LOOP) {
+                stack[depth++] = pc;
+            } else if (ops[pc] == OP_END) {
+                if (depth == 0) {
+                    throw new IOException("'end' without 'loop' in simulator script");
+                }
+                int loop = stack[--depth];
+                jumps[pc] = loop;
+                jumps[loop] = pc;
+            }
+        }
+        if (depth > 0) {
+            throw new IOException("'loop' without 'end' in simulator script");
+        }
+    }
+
+    static short getTrapID(String trapName, int lineNumber) throws IOException {
+        try {
+            return PMC.class.getField(trapName).getShort(null);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new IOException(String.format("Unknown trap '%s' at line %d", trapName, lineNumber));
+        }
+    }
+
+    /**
+     * @return traps of all generated families (without family base / complete trap) in order of families and traps
+     */
+    static short[] getFamilyTraps() {
+        short[] result = new short[0];
+        for (short[] traps : PerfTests.PERF_TRAP_FAMILIES.values()) {
+            int offset = result.length;
+            result = Arrays.copyOf(result, offset + traps.length);
+            System.arraycopy(traps, 0, result, offset, traps.length);
+        }
+        return result;
+    }
+}
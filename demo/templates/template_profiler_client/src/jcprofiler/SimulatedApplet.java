@@ -0,0 +1,15 @@
+package jcprofiler;
+
+/**
+ * Applet executed in-process by SimulatedCard. Implementation calls card.check(trapID) in place
+ * of PM.check(trapID) and card.charge(apiName) for every JavaCard API call it models, response
+ * status is given by card.throwIt(sw) (ISOException.throwIt equivalent) or normal return (0x9000).
+ */
+public interface SimulatedApplet {
+    /**
+     * Processes single command (except SELECT and INS_PERF_SETSTOP handled by simulator).
+     * @param card simulated card with PM state and cost accounting
+     * @param apdu complete command APDU (CLA INS P1 P2 [Lc data])
+     */
+    void process(SimulatedCard card, byte[] apdu) throws SimulatedCard.ISOExceptionStub;
+}
@@ -0,0 +1,162 @@
+package jcprofiler;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.Random;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * In-process card simulator with deterministic cost model. Implements card-side part of profiler
+ * (PM.m_perfStop, hit count, single-APDU arming, INS_PERF_SETSTOP handler with calibration traps)
+ * and dispatches other commands to SimulatedApplet. Every command is charged by virtual time
+ * instead of being measured by host clock, so client side of profiler (sweeps, statistics, logs)
+ * can be tested without hardware. Instrumented applet itself is not executed (no JavaCard API).
+ *
+ * Costs (ns) are read from properties: transport (round trip), dispatch (command decoding),
+ * check (not-hit trap), throw (trap hit), jitter (max. uniform random noise), seed and
+ * api.NAME for every API call charged by applet.
+ */
+public class SimulatedCard implements CardTransport {
+    public static final byte[] ATR = {0x3b, 0x00};
+    static final byte INS_SELECT = (byte) 0xa4;
+    static final short SW_INS_NOT_SUPPORTED = (short) 0x6d00;
+
+    /**
+     * Replacement of javacard.framework.ISOException used by simulated applets.
+     */
+    public static class ISOExceptionStub extends Exception {
+        private static final long serialVersionUID = 1L;
+        final short sw;
+
+        ISOExceptionStub(short sw) {
+            super(null, null, false, false); // no stack trace, thrown on every trap hit
+            this.sw = sw;
+        }
+    }
+
+    private final SimulatedApplet m_applet;
+    private final Properties m_costs;
+    private final byte m_insSetStop;
+    private final byte m_triggerIns;
+    private final boolean m_bSingleApduArming;
+    private final long m_jitter;
+    private final Random m_random;
+
+    private short m_perfStop = -1;
+    private short m_perfStopHit = 1;
+    private long m_time = 0;
+
+    public SimulatedCard(SimulatedApplet applet, Properties costs, byte insSetStop, byte triggerIns, boolean bSingleApduArming) {
+        m_applet = applet;
+        m_costs = costs;
+        m_insSetStop = insSetStop;
+        m_triggerIns = triggerIns;
+        m_bSingleApduArming = bSingleApduArming;
+        m_jitter = getCost("jitter", 0);
+        m_random = new Random(getCost("seed", 0));
+    }
+
+    public static Properties loadCosts(String costsFile) throws IOException {
+        Properties costs = new Properties();
+        if (costsFile != null) {
+            try (InputStream in = new FileInputStream(costsFile)) {
+                costs.load(in);
+            }
+        }
+        return costs;
+    }
+
+    public long getCost(String name, long defaultCost) {
+        String value = m_costs.getProperty(name);
+        return (value != null) ? Long.parseLong(value.trim()) : defaultCost;
+    }
+
+    /**
+     * Charges virtual time of given API call (property api.NAME, 0 if not set).
+     */
+    public void charge(String apiName) {
+        m_time += getCost("api." + apiName, 0);
+    }
+
+    public void chargeNanos(long nanos) {
+        m_time += nanos;
+    }
+
+    /**
+     * Equivalent of PM.check().
+     */
+    public void check(short stopCondition) throws ISOExceptionStub {
+        m_time += getCost("check", 100);
+        if (m_perfStop == stopCondition) {
+            if (m_perfStopHit <= 1) {
+                throwIt(stopCondition);
+            }
+            m_perfStopHit--;
+        }
+    }
+
+    /**
+     * Equivalent of ISOException.throwIt().
+     */
+    public void throwIt(short sw) throws ISOExceptionStub {
+        m_time += getCost("throw", 500);
+        throw new ISOExceptionStub(sw);
+    }
+
+    @Override
+    public String getName() {
+        return "simulator (" + m_applet.getClass().getSimpleName() + ")";
+    }
+
+    @Override
+    public byte[] getATR() {
+        return ATR.clone();
+    }
+
+    @Override
+    public ResponseAPDU transmit(CommandAPDU cmd) throws CardException {
+        byte[] apdu = cmd.getBytes();
+        m_time = getCost("transport", 5000000) + getCost("dispatch", 20000);
+        if (m_jitter > 0) {
+            m_time += (long) (m_random.nextDouble() * m_jitter);
+        }
+        short sw = CardManager.SW_NO_ERROR;
+        try {
+            byte ins = apdu[1];
+            if (ins == INS_SELECT) {
+                // applet selected
+            } else if (ins == m_insSetStop) {
+                m_perfStop = makeShort(apdu, CardManager.OFFSET_CDATA);
+                m_perfStopHit = ((apdu[4] & 0xff) >= 4) ? makeShort(apdu, CardManager.OFFSET_CDATA + 2) : 1;
+                check(PMC.TRAP_CALIB_1);
+                check(PMC.TRAP_CALIB_2);
+            } else {
+                if (m_bSingleApduArming && ins == m_triggerIns && makeShort(apdu, 2) != 0) {
+                    m_perfStop = makeShort(apdu, 2);
+                    m_perfStopHit = 1;
+                }
+                m_applet.process(this, apdu);
+            }
+        } catch (ISOExceptionStub e) {
+            sw = e.sw;
+        }
+        return new ResponseAPDU(new byte[]{(byte) (sw >> 8), (byte) sw});
+    }
+
+    @Override
+    public void disconnect() {
+    }
+
+    @Override
+    public long getSimulatedTime() {
+        return m_time;
+    }
+
+    static short makeShort(byte[] buf, int offset) {
+        return (short) (((buf[offset] & 0xff) << 8) | (buf[offset + 1] & 0xff));
+    }
+}
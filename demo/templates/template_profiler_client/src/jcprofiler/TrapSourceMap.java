@@ -0,0 +1,84 @@
+package jcprofiler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Positions of numbered traps in generated applet files, loaded from trap source map written by generator
+ * (jcprofiler.trapmap next to generated client). Entries are grouped by applet file, annotation of applet
+ * files needs no search for trap calls. Method and block columns of the map are not used by client.
+ */
+public class TrapSourceMap {
+    public static final String TRAP_MAP_FILE = "jcprofiler.trapmap";
+
+    private final LinkedHashMap<String, List<Entry>> entriesByFile = new LinkedHashMap<>();
+    private String appletDir = null;
+
+    /**
+     * Position of single trap.
+     */
+    static class Entry {
+        public final short trapID;
+        public final String name;
+        public final String fileName;
+        public final int line;      // 1-based
+        public final int column;    // 1-based
+
+        Entry(short trapID, String name, String fileName, int line, int column) {
+            this.trapID = trapID;
+            this.name = name;
+            this.fileName = fileName;
+            this.line = line;
+            this.column = column;
+        }
+    }
+
+    /**
+     * @param path trap source map file
+     * @throws IOException if map cannot be read or is not valid
+     */
+    public TrapSourceMap(String path) throws IOException {
+        File mapFile = new File(path);
+        try (BufferedReader br = new BufferedReader(new FileReader(mapFile))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] cols = line.split(" ");
+                if (cols[0].equals("applet") && cols.length == 2) {
+                    // relative to directory of the map
+                    File dir = new File(cols[1]);
+                    appletDir = (dir.isAbsolute() ? dir : new File(mapFile.getAbsoluteFile().getParentFile(), cols[1])).getPath() + File.separator;
+                } else if (cols.length == 7) {
+                    Entry entry = new Entry((short) Integer.parseInt(cols[0], 16), cols[1], cols[2], Integer.parseInt(cols[3]), Integer.parseInt(cols[4]));
+                    entriesByFile.computeIfAbsent(entry.fileName, k -> new ArrayList<>()).add(entry);
+                } else {
+                    throw new IOException(String.format("Invalid line '%s' in trap source map '%s'", line, path));
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException(String.format("Invalid trap source map '%s' (%s)", path, e));
+        }
+    }
+
+    /**
+     * @return directory with generated applet files recorded in map, null if not present
+     */
+    public String getAppletDir() {
+        return appletDir;
+    }
+
+    /**
+     * @return traps of every applet file (file name -> traps in order of trapIDs)
+     */
+    public Map<String, List<Entry>> getEntriesByFile() {
+        return entriesByFile;
+    }
+}
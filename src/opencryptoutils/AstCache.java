@@ -0,0 +1,100 @@
+package opencryptoutils;
+
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.comments.Comment;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Cache of parsed compilation units shared by jobs of ProfilerDaemon. Units are keyed by content hash
+ * (identical files, e.g., templates of different applets, are shared), every caller gets its own copy (transformations modify the tree), so parsing of
+ * the same unchanged file is performed only once. Least recently used units are evicted.
+ */
+public class AstCache {
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    static class CachedUnit {
+        final String source;
+        final CompilationUnit cu;
+
+        CachedUnit(String source) {
+            this.source = source;
+            this.cu = JavaParser.parse(source);
+        }
+    }
+
+    private final LinkedHashMap<String, CachedUnit> entries;
+    private long hits = 0;
+    private long misses = 0;
+
+    public AstCache(int capacity) {
+        entries = new LinkedHashMap<String, CachedUnit>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedUnit> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return copy of parsed file, file is parsed only if file with same content is not cached
+     */
+    public CompilationUnit parse(File file) throws IOException {
+        byte[] content = Files.readAllBytes(file.toPath());
+        String hash = GenerationManifest.hash(content);
+        CachedUnit entry;
+        synchronized (this) {
+            entry = entries.get(hash);
+            if (entry != null) {
+                hits++;
+            } else {
+                misses++;
+            }
+        }
+        if (entry == null) {
+            entry = new CachedUnit(new String(content, StandardCharsets.UTF_8));
+            synchronized (this) {
+                entries.put(hash, entry);
+            }
+        }
+        synchronized (entry) {
+            CompilationUnit copy = entry.cu.clone();
+            try {
+                copyOrphanComments(entry.cu, copy);
+                return copy;
+            } catch (IllegalStateException e) {
+                return JavaParser.parse(entry.source); // trees differ, copy is not reliable
+            }
+        }
+    }
+
+    /**
+     * Node.clone() does not copy orphan comments (e.g., comment followed by empty line), copies them
+     * by parallel walk of both trees.
+     */
+    static void copyOrphanComments(Node original, Node copy) {
+        List<Node> originalChildren = original.getChildNodes().stream().filter(n -> !(n instanceof Comment)).collect(Collectors.toList());
+        List<Node> copyChildren = copy.getChildNodes().stream().filter(n -> !(n instanceof Comment)).collect(Collectors.toList());
+        if (originalChildren.size() != copyChildren.size()) {
+            throw new IllegalStateException("Copy of tree differs from original");
+        }
+        for (Comment comment : original.getOrphanComments()) {
+            copy.addOrphanComment(comment.clone());
+        }
+        for (int i = 0; i < originalChildren.size(); i++) {
+            copyOrphanComments(originalChildren.get(i), copyChildren.get(i));
+        }
+    }
+
+    public synchronized String getStatistics() {
+        return String.format("%d cached files, %d hits, %d misses", entries.size(), hits, misses);
+    }
+}
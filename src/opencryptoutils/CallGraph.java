@@ -0,0 +1,225 @@
+package opencryptoutils;
+
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.body.CallableDeclaration;
+import com.github.javaparser.ast.body.ConstructorDeclaration;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.body.TypeDeclaration;
+import com.github.javaparser.ast.expr.Expression;
+import com.github.javaparser.ast.expr.MethodCallExpr;
+import com.github.javaparser.ast.expr.ObjectCreationExpr;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Call graph over parsed applet files. Calls are resolved by name and number of arguments only
+ * (no type information is available), so call with ambiguous target is connected to all candidates,
+ * calls with receiver 'this' (or without receiver) prefer methods of same class. Call without any
+ * candidate in applet files is call of JavaCard API (or other library).
+ */
+public class CallGraph {
+    /**
+     * Method or constructor declared in applet files.
+     */
+    public static class MethodNode {
+        public final String fileName;
+        public final String className;
+        public final String name;               // method name, class name for constructor
+        public final CallableDeclaration<?> declaration;
+        public final ArrayList<MethodNode> callees = new ArrayList<>();
+        public final ArrayList<MethodNode> callers = new ArrayList<>();
+
+        MethodNode(String fileName, String className, CallableDeclaration<?> declaration) {
+            this.fileName = fileName;
+            this.className = className;
+            this.name = declaration.getNameAsString();
+            this.declaration = declaration;
+        }
+
+        public String getQualifiedName() {
+            return String.format("%s.%s", className, name);
+        }
+
+        /**
+         * @return Class.name(parameter types), unique also for overloaded methods
+         */
+        public String getSignature() {
+            return String.format("%s.%s", className, declaration.getSignature().asString());
+        }
+
+        @Override
+        public String toString() {
+            return getQualifiedName();
+        }
+    }
+
+    private final ArrayList<MethodNode> methods = new ArrayList<>();
+    private final HashMap<String, ArrayList<MethodNode>> methodsByName = new HashMap<>();
+    private final IdentityHashMap<Node, MethodNode> methodsByDeclaration = new IdentityHashMap<>();
+    private final IdentityHashMap<Expression, List<MethodNode>> callTargets = new IdentityHashMap<>();
+
+    /**
+     * @param units parsed applet files (file name -> compilation unit)
+     */
+    public CallGraph(Map<String, CompilationUnit> units) {
+        for (Map.Entry<String, CompilationUnit> unit : units.entrySet()) {
+            for (TypeDeclaration<?> type : unit.getValue().findAll(TypeDeclaration.class)) {
+                for (CallableDeclaration<?> declaration : type.findAll(CallableDeclaration.class)) {
+                    if (declaration.getParentNode().orElse(null) != type) {
+                        continue; // member of nested or anonymous class, visited with its own type
+                    }
+                    MethodNode method = new MethodNode(unit.getKey(), type.getNameAsString(), declaration);
+                    methods.add(method);
+                    methodsByName.computeIfAbsent(method.name, k -> new ArrayList<>()).add(method);
+                    methodsByDeclaration.put(declaration, method);
+                }
+            }
+        }
+        for (MethodNode method : methods) {
+            for (Expression call : method.declaration.findAll(Expression.class)) {
+                if (!(call instanceof MethodCallExpr) && !(call instanceof ObjectCreationExpr)) {
+                    continue;
+                }
+                if (getEnclosingMethod(call) != method) {
+                    continue;
+                }
+                List<MethodNode> targets = resolve(call, method);
+                callTargets.put(call, targets);
+                for (MethodNode target : targets) {
+                    if (!method.callees.contains(target)) {
+                        method.callees.add(target);
+                        target.callers.add(method);
+                    }
+                }
+            }
+        }
+    }
+
+    private List<MethodNode> resolve(Expression call, MethodNode caller) {
+        String name;
+        int numArgs;
+        Expression scope;
+        if (call instanceof MethodCallExpr) {
+            MethodCallExpr methodCall = (MethodCallExpr) call;
+            name = methodCall.getNameAsString();
+            numArgs = methodCall.getArguments().size();
+            scope = methodCall.getScope().orElse(null);
+        } else {
+            ObjectCreationExpr creation = (ObjectCreationExpr) call;
+            name = creation.getType().getNameAsString();
+            numArgs = creation.getArguments().size();
+            scope = null;
+        }
+        ArrayList<MethodNode> candidates = new ArrayList<>();
+        for (MethodNode candidate : methodsByName.getOrDefault(name, new ArrayList<>())) {
+            boolean bConstructor = candidate.declaration instanceof ConstructorDeclaration;
+            if (bConstructor == (call instanceof ObjectCreationExpr) && candidate.declaration.getParameters().size() == numArgs) {
+                candidates.add(candidate);
+            }
+        }
+        // receiver naming class (static call) or this/super selects class of target
+        String targetClass = null;
+        if (scope == null || scope.isThisExpr() || scope.isSuperExpr()) {
+            targetClass = caller.className;
+        } else if (scope.isNameExpr() && Character.isUpperCase(scope.asNameExpr().getNameAsString().charAt(0))) {
+            targetClass = scope.asNameExpr().getNameAsString();
+        }
+        if (targetClass != null) {
+            ArrayList<MethodNode> sameClass = new ArrayList<>();
+            for (MethodNode candidate : candidates) {
+                if (candidate.className.equals(targetClass)) {
+                    sameClass.add(candidate);
+                }
+            }
+            if (!sameClass.isEmpty() || scope != null) {
+                return sameClass; // call of static method of library class is not call of same-named applet method
+            }
+        }
+        return candidates;
+    }
+
+    public List<MethodNode> getMethods() {
+        return Collections.unmodifiableList(methods);
+    }
+
+    /**
+     * @return methods of given name (or Class.name)
+     */
+    public List<MethodNode> getMethods(String name) {
+        ArrayList<MethodNode> result = new ArrayList<>();
+        int separator = name.lastIndexOf('.');
+        for (MethodNode method : methodsByName.getOrDefault(name.substring(separator + 1), new ArrayList<>())) {
+            if (separator < 0 || method.className.equals(name.substring(0, separator))) {
+                result.add(method);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return method with given signature (see MethodNode.getSignature), null if not found
+     */
+    public MethodNode getMethodBySignature(String signature) {
+        for (MethodNode method : methods) {
+            if (method.getSignature().equals(signature)) {
+                return method;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return method (or constructor) declaring given node, null if node is not inside method of applet files
+     */
+    public MethodNode getEnclosingMethod(Node node) {
+        for (Node current = node; current != null; current = current.getParentNode().orElse(null)) {
+            if (current instanceof CallableDeclaration) {
+                return methodsByDeclaration.get(current);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return methods possibly called by given call (method call or object creation), empty for calls of API
+     */
+    public List<MethodNode> getCallTargets(Expression call) {
+        return callTargets.getOrDefault(call, Collections.emptyList());
+    }
+
+    /**
+     * @return true if expression is call of method not declared in applet files (JavaCard API or library),
+     * calls of profiler itself (PM) are not included
+     */
+    public boolean isApiCall(Expression call) {
+        if (!(call instanceof MethodCallExpr) || !callTargets.containsKey(call) || !callTargets.get(call).isEmpty()) {
+            return false;
+        }
+        Expression scope = ((MethodCallExpr) call).getScope().orElse(null);
+        return scope == null || !scope.toString().equals("PM");
+    }
+
+    /**
+     * @return given methods and all methods transitively called from them (in order of discovery)
+     */
+    public Set<MethodNode> getReachable(List<MethodNode> roots) {
+        LinkedHashSet<MethodNode> reachable = new LinkedHashSet<>(roots);
+        ArrayDeque<MethodNode> toVisit = new ArrayDeque<>(roots);
+        while (!toVisit.isEmpty()) {
+            for (MethodNode callee : toVisit.poll().callees) {
+                if (reachable.add(callee)) {
+                    toVisit.add(callee);
+                }
+            }
+        }
+        return reachable;
+    }
+}
@@ -0,0 +1,376 @@
+package opencryptoutils;
+
+import com.github.javaparser.Position;
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.body.VariableDeclarator;
+import com.github.javaparser.ast.expr.BinaryExpr;
+import com.github.javaparser.ast.expr.Expression;
+import com.github.javaparser.ast.expr.FieldAccessExpr;
+import com.github.javaparser.ast.expr.MethodCallExpr;
+import com.github.javaparser.ast.expr.ObjectCreationExpr;
+import com.github.javaparser.ast.stmt.Statement;
+import opencryptoutils.CallGraph.MethodNode;
+import static opencryptoutils.Parser.*;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Drill-down into slowest segments of previous profiling session. Trap names are resolved from PMC.java
+ * of previous generation and traps are located in transformed applet files (target/profiler_applet),
+ * so methods called inside of segment between two traps can be selected for automatic traps.
+ * Calls are attributed to segment by position in source code, segment spanning loop back-edge
+ * is therefore approximated by code between its traps.
+ */
+public class DrillDown {
+    public final static String CALL_TREE_FILE = "profiler_calltree.txt";
+
+    /**
+     * Measured segment between previous trap and trap.
+     */
+    static class Segment {
+        short trapID;
+        short prevTrapID;
+        double millis;                  // (calibrated) median time of segment
+        String trapName;                // null if trapID is not known in PMC
+        String prevTrapName;
+        MethodCallExpr trap = null;     // PM.check() of trap, null for TRAP_x_COMPLETE (or trap not found)
+        MethodCallExpr prevTrap = null; // PM.check() of previous trap, null for PERF_START
+
+        @Override
+        public String toString() {
+            return String.format("%s - %s", (prevTrapName != null) ? prevTrapName : String.format("0x%04x", prevTrapID),
+                    (trapName != null) ? trapName : String.format("0x%04x", trapID));
+        }
+    }
+
+    private final HashMap<Short, String> trapNames = new HashMap<>();
+    private final HashMap<String, MethodCallExpr> trapCalls = new HashMap<>();
+    private final LinkedHashMap<MethodNode, String> profiledMethods = new LinkedHashMap<>(); // method with traps -> trap family
+    private final ArrayList<Segment> segments = new ArrayList<>();
+    private final CallGraph graph;
+
+    /**
+     * @param outputDirApplet directory with files of previous generation (PMC.java and transformed applet files)
+     */
+    public DrillDown(String outputDirApplet) throws IOException {
+        File pmcFile = new File(outputDirApplet, "PMC.java");
+        if (!pmcFile.exists()) {
+            throw new IOException(String.format("File '%s' of previous generation not found, drill-down requires profiler generated and measured before", pmcFile.getPath()));
+        }
+        loadTrapNames(parseFile(pmcFile.getPath()));
+
+        TreeMap<String, CompilationUnit> units = parseAppletFiles(outputDirApplet);
+        graph = new CallGraph(units);
+        for (CompilationUnit cu : units.values()) {
+            for (MethodCallExpr call : cu.findAll(MethodCallExpr.class)) {
+                if (isTrap(call)) {
+                    String name = ((FieldAccessExpr) call.getArgument(0)).getNameAsString();
+                    trapCalls.put(name, call);
+                    MethodNode method = graph.getEnclosingMethod(call);
+                    String family = PerfTrap.fromName(name, null, null).family;
+                    if (method != null && !profiledMethods.containsKey(method) && !family.equals("CALIB")) { // calibration traps in process()
+                        profiledMethods.put(method, family);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if call is numbered trap PM.check(PMC.TRAP_x_i)
+     */
+    static boolean isTrap(MethodCallExpr call) {
+        if (!call.getNameAsString().equals("check") || !call.getScope().isPresent() || !call.getScope().get().toString().equals("PM")
+                || call.getArguments().size() != 1 || !call.getArgument(0).isFieldAccessExpr()) {
+            return false;
+        }
+        FieldAccessExpr arg = call.getArgument(0).asFieldAccessExpr();
+        return arg.getScope().toString().equals("PMC") && arg.getNameAsString().matches("TRAP_\\w+_\\d+");
+    }
+
+    /**
+     * Evaluates constants of PMC, values are hex literals with cast, references to other constants or their sums.
+     */
+    private void loadTrapNames(CompilationUnit pmc) {
+        HashMap<String, Integer> values = new HashMap<>();
+        for (VariableDeclarator constant : pmc.findAll(VariableDeclarator.class)) {
+            Integer value = constant.getInitializer().map(init -> evaluate(init, values)).orElse(null);
+            if (value != null) {
+                values.put(constant.getNameAsString(), value);
+                trapNames.putIfAbsent((short) (int) value, constant.getNameAsString()); // TRAP_x before its alias TRAP_x_COMPLETE
+            }
+        }
+        for (Map.Entry<String, Integer> constant : values.entrySet()) {
+            if (constant.getKey().endsWith("_COMPLETE")) {
+                trapNames.put((short) (int) constant.getValue(), constant.getKey());
+            }
+        }
+    }
+
+    private static Integer evaluate(Expression expr, HashMap<String, Integer> values) {
+        if (expr.isCastExpr()) {
+            return evaluate(expr.asCastExpr().getExpression(), values);
+        } else if (expr.isEnclosedExpr()) {
+            return evaluate(expr.asEnclosedExpr().getInner(), values);
+        } else if (expr.isNameExpr()) {
+            return values.get(expr.asNameExpr().getNameAsString());
+        } else if (expr.isIntegerLiteralExpr()) {
+            String literal = expr.asIntegerLiteralExpr().getValue().toLowerCase(Locale.ROOT);
+            return literal.startsWith("0x") ? Integer.parseInt(literal.substring(2), 16) : Integer.parseInt(literal);
+        } else if (expr.isBinaryExpr() && expr.asBinaryExpr().getOperator() == BinaryExpr.Operator.PLUS) {
+            Integer left = evaluate(expr.asBinaryExpr().getLeft(), values);
+            Integer right = evaluate(expr.asBinaryExpr().getRight(), values);
+            return (left != null && right != null) ? left + right : null;
+        }
+        return null;
+    }
+
+    /**
+     * Loads segments from results file TRAP_RAW_*.csv stored by JCProfiler_client.
+     */
+    public void loadResults(String resultsFile) throws IOException {
+        try (BufferedReader br = new BufferedReader(new FileReader(resultsFile))) {
+            String strLine;
+            while ((strLine = br.readLine()) != null) {
+                if (strLine.contains("trapID,") || strLine.trim().isEmpty()) {
+                    continue; // header line
+                }
+                String[] cols = strLine.split(",");
+                Segment segment = new Segment();
+                segment.trapID = Short.parseShort(cols[0].trim());
+                segment.prevTrapID = Short.parseShort(cols[1].trim());
+                segment.millis = Double.parseDouble(cols[(cols.length > 3) ? 3 : 2].trim()); // calibrated time, if available
+                segment.trapName = trapNames.get(segment.trapID);
+                segment.prevTrapName = trapNames.get(segment.prevTrapID);
+                segment.trap = (segment.trapName != null) ? trapCalls.get(segment.trapName) : null;
+                segment.prevTrap = (segment.prevTrapName != null) ? trapCalls.get(segment.prevTrapName) : null;
+                segments.add(segment);
+            }
+        }
+        int unknown = 0;
+        for (Segment segment : segments) {
+            if (segment.trapName == null) {
+                unknown++;
+            }
+        }
+        if (unknown > 0) {
+            System.out.println(String.format("  WARNING: %d traps from '%s' not found in PMC of previous generation (profiler regenerated since measurement?)", unknown, resultsFile));
+        }
+    }
+
+    /**
+     * @return method in which segment is executed, null if none of its traps is found in applet files
+     */
+    MethodNode getMethod(Segment segment) {
+        return graph.getEnclosingMethod((segment.trap != null) ? segment.trap : segment.prevTrap);
+    }
+
+    /**
+     * @return calls (method calls and object creations) located between traps of segment
+     */
+    List<Expression> getCalls(Segment segment) {
+        ArrayList<Expression> calls = new ArrayList<>();
+        if (segment.trap == null && segment.prevTrap == null) {
+            return calls;
+        }
+        MethodNode method = getMethod(segment);
+        Position from = (segment.prevTrap != null && graph.getEnclosingMethod(segment.prevTrap) == method) ? end(segment.prevTrap) : null;
+        Position to = (segment.trap != null) ? begin(segment.trap) : null;
+        for (Expression call : method.declaration.findAll(Expression.class)) {
+            if ((call instanceof MethodCallExpr || call instanceof ObjectCreationExpr) && graph.getEnclosingMethod(call) == method
+                    && (from == null || begin(call).isAfter(from)) && (to == null || end(call).isBefore(to))) {
+                calls.add(call);
+            }
+        }
+        return calls;
+    }
+
+    private static Position begin(Node node) {
+        return node.getRange().get().begin;
+    }
+
+    private static Position end(Node node) {
+        return node.getRange().get().end;
+    }
+
+    /**
+     * @return statements (without traps) located between traps of segment, see Parser.getStatements
+     */
+    List<Statement> getStatements(Segment segment) {
+        ArrayList<Statement> statements = new ArrayList<>();
+        if (segment.trap == null && segment.prevTrap == null) {
+            return statements;
+        }
+        MethodNode method = getMethod(segment);
+        Position from = (segment.prevTrap != null && graph.getEnclosingMethod(segment.prevTrap) == method) ? end(segment.prevTrap) : null;
+        Position to = (segment.trap != null) ? begin(segment.trap) : null;
+        for (Statement statement : Parser.getStatements(method.declaration)) {
+            if ((from == null || begin(statement).isAfter(from)) && (to == null || end(statement).isBefore(to))) {
+                statements.add(statement);
+            }
+        }
+        return statements;
+    }
+
+    /**
+     * @return trap family of segment, null if not known
+     */
+    String getFamily(Segment segment) {
+        String name = (segment.trap != null) ? segment.trapName : (segment.prevTrap != null) ? segment.prevTrapName : null;
+        return (name != null) ? PerfTrap.fromName(name, null, null).family : null;
+    }
+
+    /**
+     * @param percent threshold in percents of total time of trap family
+     * @return segments taking more than given part of time of their family, from the slowest one
+     */
+    List<Segment> getHotSegments(double percent) {
+        HashMap<String, Double> totals = new HashMap<>();
+        for (Segment segment : segments) {
+            String family = getFamily(segment);
+            if (family != null) {
+                totals.merge(family, Math.max(0, segment.millis), Double::sum);
+            }
+        }
+        ArrayList<Segment> hot = new ArrayList<>();
+        for (Segment segment : getSlowestSegments(segments.size())) {
+            String family = getFamily(segment);
+            if (family != null && !family.equals("CALIB") && segment.millis > totals.get(family) * percent / 100) {
+                hot.add(segment);
+            }
+        }
+        return hot;
+    }
+
+    /**
+     * @return segments sorted from the slowest one, at most count
+     */
+    List<Segment> getSlowestSegments(int count) {
+        ArrayList<Segment> sorted = new ArrayList<>(segments);
+        sorted.sort((a, b) -> Double.compare(b.millis, a.millis));
+        return sorted.subList(0, Math.min(count, sorted.size()));
+    }
+
+    /**
+     * Selects applet methods called inside the slowest segments which are not profiled yet.
+     * @param count number of the slowest segments inspected
+     * @return qualified names (Class.method) of selected callees
+     */
+    public List<String> selectCallees(int count) {
+        return selectCallees(getSlowestSegments(count));
+    }
+
+    List<String> selectCallees(List<Segment> selectedSegments) {
+        LinkedHashSet<String> selected = new LinkedHashSet<>();
+        for (Segment segment : selectedSegments) {
+            LinkedHashSet<String> callees = new LinkedHashSet<>();
+            for (Expression call : getCalls(segment)) {
+                for (MethodNode callee : graph.getCallTargets(call)) {
+                    if (!profiledMethods.containsKey(callee) && !callee.className.equals("PM") && !callee.className.equals("PMC")) {
+                        callees.add(callee.getQualifiedName());
+                    }
+                }
+            }
+            System.out.println(String.format("INFO: Segment %s (%.3f ms) calls %s", segment, segment.millis,
+                    callees.isEmpty() ? "no unprofiled applet methods" : String.join(", ", callees)));
+            selected.addAll(callees);
+        }
+        return new ArrayList<>(selected);
+    }
+
+    /**
+     * @return qualified names (Class.method) of profiled methods with traps inserted automatically
+     * (family named after method), these stay instrumented when drilling further down
+     */
+    public List<String> getAutoTrappedMethods() {
+        ArrayList<String> methods = new ArrayList<>();
+        for (Map.Entry<MethodNode, String> method : profiledMethods.entrySet()) {
+            MethodNode node = method.getKey();
+            if (method.getValue().equals(node.name.toUpperCase(Locale.ROOT))
+                    || method.getValue().equals(node.getQualifiedName().replaceAll("\\W", "_").toUpperCase(Locale.ROOT))) {
+                methods.add(node.getQualifiedName());
+            }
+        }
+        return methods;
+    }
+
+    /**
+     * @return inclusive time of profiled method, sum of its segments between first and last trap
+     */
+    private double getInclusiveTime(MethodNode method) {
+        double millis = 0;
+        for (Segment segment : segments) {
+            if (segment.trap != null && segment.prevTrap != null
+                    && graph.getEnclosingMethod(segment.trap) == method && graph.getEnclosingMethod(segment.prevTrap) == method) {
+                millis += Math.max(0, segment.millis);
+            }
+        }
+        return millis;
+    }
+
+    private List<MethodNode> getProfiledCallees(MethodNode method) {
+        ArrayList<MethodNode> callees = new ArrayList<>();
+        for (MethodNode callee : method.callees) {
+            if (callee != method && profiledMethods.containsKey(callee)) {
+                callees.add(callee);
+            }
+        }
+        return callees;
+    }
+
+    /**
+     * Formats call tree of profiled methods with inclusive time (between first and last trap of method)
+     * and exclusive time (inclusive time without time of profiled callees).
+     */
+    public String formatCallTree() {
+        StringBuilder tree = new StringBuilder("Call tree of profiled methods (inclusive / exclusive time, ms):\n");
+        for (MethodNode method : profiledMethods.keySet()) {
+            boolean bRoot = true;
+            for (MethodNode caller : method.callers) {
+                bRoot &= (caller == method) || !profiledMethods.containsKey(caller);
+            }
+            if (bRoot) {
+                formatCallTree(method, 1, new HashSet<>(), tree);
+            }
+        }
+        return tree.toString();
+    }
+
+    private void formatCallTree(MethodNode method, int depth, HashSet<MethodNode> path, StringBuilder tree) {
+        double inclusive = getInclusiveTime(method);
+        double exclusive = inclusive;
+        for (MethodNode callee : getProfiledCallees(method)) {
+            exclusive -= getInclusiveTime(callee);
+        }
+        char[] indent = new char[2 * depth];
+        Arrays.fill(indent, ' ');
+        tree.append(String.format(Locale.ROOT, "%s%s [%s]: %.3f / %.3f%s\n", new String(indent), method.getQualifiedName(),
+                profiledMethods.get(method), inclusive, Math.max(0, exclusive), path.contains(method) ? " (recursion)" : ""));
+        if (path.add(method)) {
+            for (MethodNode callee : getProfiledCallees(method)) {
+                formatCallTree(callee, depth + 1, path, tree);
+            }
+            path.remove(method);
+        }
+    }
+
+    public void saveCallTree(String fileName) throws IOException {
+        try (FileWriter writer = new FileWriter(fileName)) {
+            writer.write(formatCallTree());
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package opencryptoutils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import opencryptoutils.TrapReachability.Reachability;
+
+/**
+ * Manifest of last generation stored in target directory. Records content hashes (SHA-256) of input files,
+ * templates and generator options together with metadata of processed files (traps, constants, package),
+ * so unchanged files are not parsed again and unchanged profiler templates are not regenerated.
+ * 
+ * Format (one record per line):
+ *   version N
+ *   options|templates|profiler HASH
+ *   file HASH SWITCH_INSERTED ARMING_INSERTED PACKAGE CONSTANTS FILE_NAME
+ *   trap LINE COLUMN BLOCK_START NAME METHOD     (belongs to preceding file record)
+ *   reachability HASH                            (hash of inputs of reachability analysis of transformed files)
+ *   handler DESCRIPTION                          (trigger handler found by reachability analysis)
+ *   reach NAME REACHABILITY                      (result of reachability analysis for trap)
+ */
+public class GenerationManifest {
+    public static final String MANIFEST_FILE = "jcprofiler.manifest";
+    static final int VERSION = 3;
+    static final String NONE = "-";
+
+    public String optionsHash = "";
+    public String templatesHash = "";
+    public String profilerHash = "";    // hash of all inputs of personalized templates (PM, PMC, PerfTests)
+    public String reachabilityHash = "";    // hash of inputs of reachability analysis (see filesHash())
+    public String reachabilityHandler = null; // handler of trigger command found by reachability analysis, null if not found
+    public final HashMap<String, Reachability> reachability = new HashMap<>(); // trap name -> reachability from trigger handler
+    private final TreeMap<String, String> fileHashes = new TreeMap<>();
+    private final HashMap<String, PerfSourceFile> files = new HashMap<>();
+
+    /**
+     * @return manifest loaded from file, empty manifest if file does not exist or is not valid
+     */
+    public static GenerationManifest load(String path) {
+        GenerationManifest manifest = new GenerationManifest();
+        File file = new File(path);
+        if (!file.exists()) {
+            return manifest;
+        }
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            String strLine;
+            PerfSourceFile sourceFile = null;
+            boolean bVersionOk = false;
+            while ((strLine = br.readLine()) != null) {
+                if (strLine.startsWith("#") || strLine.isEmpty()) {
+                    continue;
+                }
+                String[] cols = strLine.split(" ", 7);
+                switch (cols[0]) {
+                    case "version":
+                        bVersionOk = Integer.parseInt(cols[1]) == VERSION;
+                        break;
+                    case "options":
+                        manifest.optionsHash = cols[1];
+                        break;
+                    case "templates":
+                        manifest.templatesHash = cols[1];
+                        break;
+                    case "profiler":
+                        manifest.profilerHash = cols[1];
+                        break;
+                    case "file":
+                        sourceFile = new PerfSourceFile(cols[6]);
+                        sourceFile.bSwitchCaseInserted = Boolean.parseBoolean(cols[2]);
+                        sourceFile.bArmingInserted = Boolean.parseBoolean(cols[3]);
+                        sourceFile.packageName = cols[4].equals(NONE) ? null : cols[4];
+                        if (!cols[5].equals(NONE)) {
+                            for (String constant : cols[5].split(",")) {
+                                sourceFile.constants.add((byte) Integer.parseInt(constant, 16));
+                            }
+                        }
+                        manifest.put(sourceFile, cols[1]);
+                        break;
+                    case "trap":
+                        PerfTrap trap = PerfTrap.fromName(cols[4], sourceFile.fileName, cols[5].equals(NONE) ? null : cols[5]);
+                        trap.line = Integer.parseInt(cols[1]);
+                        trap.column = Integer.parseInt(cols[2]);
+                        trap.bBlockStart = Boolean.parseBoolean(cols[3]);
+                        sourceFile.traps.add(trap);
+                        break;
+                    case "reachability":
+                        manifest.reachabilityHash = cols[1];
+                        break;
+                    case "handler":
+                        manifest.reachabilityHandler = strLine.substring("handler ".length()); // description may contain spaces
+                        break;
+                    case "reach":
+                        manifest.reachability.put(cols[1], Reachability.valueOf(cols[2]));
+                        break;
+                    default:
+                        throw new IOException("Unknown record " + cols[0]);
+                }
+            }
+            if (!bVersionOk) {
+                return new GenerationManifest();
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println(String.format("  Invalid manifest '%s' ignored (%s)", path, e));
+            return new GenerationManifest();
+        }
+        return manifest;
+    }
+
+    public void save(String path) throws IOException {
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(path))) {
+            bw.write("# JCProfiler generation manifest, do not edit (delete to force full regeneration)\n");
+            bw.write(String.format("version %d\n", VERSION));
+            bw.write(String.format("options %s\n", optionsHash));
+            bw.write(String.format("templates %s\n", templatesHash));
+            bw.write(String.format("profiler %s\n", profilerHash));
+            for (Map.Entry<String, String> entry : fileHashes.entrySet()) {
+                PerfSourceFile sourceFile = files.get(entry.getKey());
+                bw.write(String.format("file %s %b %b %s %s %s\n", entry.getValue(), sourceFile.bSwitchCaseInserted, sourceFile.bArmingInserted,
+                        sourceFile.packageName != null ? sourceFile.packageName : NONE, formatConstants(sourceFile.constants), sourceFile.fileName));
+                for (PerfTrap trap : sourceFile.traps) {
+                    bw.write(String.format("trap %d %d %b %s %s\n", trap.line, trap.column, trap.bBlockStart, trap.name, trap.methodName != null ? trap.methodName : NONE));
+                }
+            }
+            if (!reachabilityHash.isEmpty()) {
+                bw.write(String.format("reachability %s\n", reachabilityHash));
+                if (reachabilityHandler != null) {
+                    bw.write(String.format("handler %s\n", reachabilityHandler));
+                }
+                for (Map.Entry<String, Reachability> entry : new TreeMap<>(reachability).entrySet()) {
+                    bw.write(String.format("reach %s %s\n", entry.getKey(), entry.getValue()));
+                }
+            }
+        }
+    }
+
+    public void put(PerfSourceFile sourceFile, String hash) {
+        fileHashes.put(sourceFile.fileName, hash);
+        files.put(sourceFile.fileName, sourceFile);
+    }
+
+    /**
+     * @return hash of names and content hashes of all files put into manifest
+     */
+    public String filesHash() {
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String, String> entry : fileHashes.entrySet()) {
+            result.append(String.format("%s %s\n", entry.getKey(), entry.getValue()));
+        }
+        return hash(result.toString());
+    }
+
+    /**
+     * @return metadata of file from last generation (without parsed compilation unit), null if file content changed
+     */
+    public PerfSourceFile getCached(String fileName, String hash) {
+        return hash.equals(fileHashes.get(fileName)) ? files.get(fileName) : null;
+    }
+
+    static String formatConstants(List<Byte> constants) {
+        if (constants.isEmpty()) {
+            return NONE;
+        }
+        StringBuilder result = new StringBuilder();
+        for (Byte constant : constants) {
+            if (result.length() > 0) {
+                result.append(',');
+            }
+            result.append(String.format("%02x", constant));
+        }
+        return result.toString();
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    static String toHex(byte[] digest) {
+        StringBuilder result = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            result.append(String.format("%02x", b));
+        }
+        return result.toString();
+    }
+
+    public static String hash(byte[] content) {
+        return toHex(newDigest().digest(content));
+    }
+
+    public static String hash(String content) {
+        return hash(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return hash of relative paths and content of all files in directory (recursively)
+     */
+    public static String hashDirectory(File dir) throws IOException {
+        MessageDigest digest = newDigest();
+        hashDirectory(dir, "", digest);
+        return toHex(digest.digest());
+    }
+
+    private static void hashDirectory(File dir, String relativePath, MessageDigest digest) throws IOException {
+        String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+        Arrays.sort(names);
+        for (String name : names) {
+            File file = new File(dir, name);
+            String path = relativePath + "/" + name;
+            if (file.isDirectory()) {
+                hashDirectory(file, path, digest);
+            } else {
+                digest.update(path.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                digest.update(Files.readAllBytes(file.toPath()));
+            }
+        }
+    }
+}
@@ -1,10 +1,12 @@
 package opencryptoutils;
 
-import com.github.javaparser.JavaParser;
 import java.io.IOException;
 import org.apache.commons.cli.*;
 import com.github.javaparser.ast.CompilationUnit;
 import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
 import static opencryptoutils.Parser.*;
 
 /**
@@ -23,15 +25,26 @@ public class JCProfiler {
     
     /**
      * @param args the command line arguments
+     * @return false if action failed
      */
-    private void run(String[] args) {
+    boolean run(String[] args) {
         try {
             CommandLine cli = parseArgs(args);
 
             //if help, print and quit
             if (cli.hasOption("help")) {
                 help();
-                return;
+                return true;
+            }
+
+            if (cli.hasOption("daemon")) {
+                ProfilerDaemon daemon = new ProfilerDaemon(Integer.parseInt(cli.getOptionValue("jobs", Integer.toString(Runtime.getRuntime().availableProcessors()))));
+                if (cli.getOptionValue("daemon") != null) {
+                    daemon.runSpool(new File(cli.getOptionValue("daemon")));
+                } else {
+                    daemon.runStdin();
+                }
+                return true;
             }
             
             if (cli.hasOption("parser")) {
@@ -44,8 +57,7 @@ public class JCProfiler {
                     for (String fileName : filesArray) {
                         if (!fileName.equals("OCUnitTests.java")) {
                             String filePath = baseAppletFilesDir + fileName;
-                            File inputFile = new File(filePath);
-                            CompilationUnit cu = JavaParser.parse(inputFile);
+                            CompilationUnit cu = parseFile(filePath);
                             switch(cli.getOptionValue("parser")){
                                 case "commentToCode":
                                     commentToCode(cu);
@@ -61,25 +73,63 @@ public class JCProfiler {
                                     break;
                                 default:
                                     System.err.println("wrong argument option");
-                                    return;
+                                    return false;
                             }
                             writeChanges(filePath, cu);
                         }
                     }
-                    return;
+                    return true;
                 }
             }
 
             if (cli.hasOption("setTraps")) {
                 PerfCodeGenerator gen = new PerfCodeGenerator();
                 
-                String methodBaseName = cli.getOptionValue("methodBaseName", "EC_GEN");
+                // without methodBaseName, all trap families found in input files are profiled
+                String methodBaseName = cli.getOptionValue("methodBaseName", "ALL");
+                if (cli.hasOption("methodBaseName")) {
+                    gen.trapFamilies = new HashSet<>(Arrays.asList(methodBaseName.split(",")));
+                }
                 String startConstString = cli.getOptionValue("trapIDStartConst", "7770");
                 short  startTrapIDConst = Short.parseShort(startConstString, 16);
                 PerfCodeConfig cfg = new PerfCodeConfig("not_set", methodBaseName, methodBaseName, 0, startTrapIDConst);
+                if (cli.hasOption("triggerIns")) {
+                    cfg.triggerIns = (byte) Integer.parseInt(cli.getOptionValue("triggerIns"), 16);
+                }
+                
+                if (cli.hasOption("jobs")) {
+                    gen.numJobs = Integer.parseInt(cli.getOptionValue("jobs"));
+                }
+                gen.bUseCache = !cli.hasOption("force");
+                if (cli.hasOption("autoTraps")) {
+                    gen.autoTrapMethods = cli.getOptionValue("autoTraps");
+                }
+                String density = cli.getOptionValue("autoTrapDensity", "statement").toUpperCase(Locale.ROOT); // also for methods added by drill-down or zoom
+                if (!Arrays.asList("STATEMENT", "BLOCK", "API").contains(density)) {
+                    System.err.println("Unknown trap density " + density.toLowerCase(Locale.ROOT));
+                    return false;
+                }
+                gen.autoTrapDensity = Parser.TrapDensity.valueOf(density);
                 
                 String baseDir = cli.getOptionValue("baseDir", "");
-                gen.generatePersonalizedProfiler(cfg, baseDir);
+                if (cli.hasOption("drillDown")) {
+                    gen.drillDown(cli.getOptionValue("drillDown"), Integer.parseInt(cli.getOptionValue("drillDownSegments", "3")), baseDir);
+                }
+                if (cli.hasOption("zoom")) {
+                    if (!cli.hasOption("zoomCommand")) {
+                        System.err.println("Option zoom requires measurement command set by zoomCommand");
+                        return false;
+                    }
+                    Zoom zoom = new Zoom(gen, cli.getOptionValue("zoomCommand"), Double.parseDouble(cli.getOptionValue("zoom")),
+                            Integer.parseInt(cli.getOptionValue("zoomIterations", Integer.toString(Zoom.DEFAULT_ITERATIONS))));
+                    zoom.run(cfg, baseDir);
+                } else {
+                    gen.generatePersonalizedProfiler(cfg, baseDir);
+                }
+                if (cli.hasOption("watch")) {
+                    gen.watch(cfg, baseDir);
+                }
+                return true;
             }
         } catch (MissingArgumentException maex) {
             System.err.println("Option, " + maex.getOption().getOpt() + " requires an argument: " + maex.getOption().getArgName());
@@ -87,8 +137,11 @@ public class JCProfiler {
             System.err.println("Not a number. " + nfex.getMessage());
         } catch (ParseException | IOException ex) {
             System.err.println(ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         } finally {
         }            
+        return false;
     }
  
     
@@ -104,22 +157,46 @@ public class JCProfiler {
         /*
          * Actions:
          * -st / --setTraps 
+         * -d / --daemon [spool_directory]
          *
          * Options:
          * -bd / --baseDir [base_directory]
-         * -mbd / --methodBaseName [name]
+         * -mbd / --methodBaseName [name[,name...]]
          * -tsc / --trapIDStartConst [start_constant] <b> 
+         * -ti / --triggerIns [ins]
+         * -at / --autoTraps [all|reachable|[Class.]method[,...]]
+         * -atd / --autoTrapDensity [statement|block|api]
+         * -dd / --drillDown [results_file]
+         * -dds / --drillDownSegments [count]
+         * -z / --zoom [percent]
+         * -zc / --zoomCommand [command]
+         * -zi / --zoomIterations [count]
+         * -j / --jobs [count]
+         * -f / --force
+         * -w / --watch
          *
          */
         OptionGroup actions = new OptionGroup();
         actions.setRequired(true);
         actions.addOption(Option.builder("h").longOpt("help").desc("Print help.").build());
         actions.addOption(Option.builder("st").longOpt("setTraps").desc("Parse input source code files, search for template performance traps and generates both card-side and client-side files for performance profiling.").build());
+        actions.addOption(Option.builder("d").longOpt("daemon").desc("Run as daemon executing JCProfiler command lines (jobs) read from standard input or from *.job files in spool directory. Option -j sets number of concurrent jobs.").hasArg().optionalArg(true).argName("spool_directory").build());
         opts.addOptionGroup(actions);
 
-        opts.addOption(Option.builder("tsc").longOpt("trapIDStartConst").desc("Initial start value (short) for trapID constants.").hasArg().argName("start_constant").build());
-        opts.addOption(Option.builder("bd").longOpt("baseDir").desc("Base directory with template files").hasArg().argName("base_directory").required(true).build());
-        opts.addOption(Option.builder("mbd").longOpt("methodBaseName").desc("Base name of method to be profiled.").hasArg().argName("name").required(true).build());
+        opts.addOption(Option.builder("tsc").longOpt("trapIDStartConst").desc("Initial start value (short, hex) for trapID constants. Ranges of further trap families are allocated below.").hasArg().argName("start_constant").build());
+        opts.addOption(Option.builder("bd").longOpt("baseDir").desc("Base directory with template files").hasArg().argName("base_directory").build());
+        opts.addOption(Option.builder("mbd").longOpt("methodBaseName").desc("Base name(s) of method to be profiled (comma separated), traps PM.check(PMC.TRAP_<name>_0). If not set, all template trap families found are profiled.").hasArg().argName("name[,name...]").build());
+        opts.addOption(Option.builder("ti").longOpt("triggerIns").desc("INS (hex) of profiled trigger command. If set, trapID is armed from P1/P2 of trigger command (single APDU per measurement).").hasArg().argName("ins").build());
+        opts.addOption(Option.builder("at").longOpt("autoTraps").desc("Insert traps automatically (no templates required) into selected methods: comma separated list of 'all', 'reachable' (all methods reachable from process()) or [Class.]method. Every method is profiled as separate trap family.").hasArg().argName("methods").build());
+        opts.addOption(Option.builder("atd").longOpt("autoTrapDensity").desc("Density of automatically inserted traps: 'statement' (before every statement, default), 'block' (start of every basic block) or 'api' (around JavaCard API calls).").hasArg().argName("density").build());
+        opts.addOption(Option.builder("dd").longOpt("drillDown").desc("Results of previous session (TRAP_RAW_*.csv) measured with profiler generated before. Call tree of profiled methods is stored and applet methods called from the slowest segments get automatic traps.").hasArg().argName("results_file").build());
+        opts.addOption(Option.builder("dds").longOpt("drillDownSegments").desc("Number of the slowest segments inspected by drill-down (default: 3).").hasArg().argName("count").build());
+        opts.addOption(Option.builder("z").longOpt("zoom").desc("Closed-loop profiling: after every generation, zoomCommand is executed and segments taking more than given percent of time of their trap family are split by finer traps, until statement granularity is reached.").hasArg().argName("percent").build());
+        opts.addOption(Option.builder("zc").longOpt("zoomCommand").desc("Shell command executed in base directory to measure generated profiler (e.g., convert and upload applet, run JCProfiler_client or run it with --simulator). Must produce new TRAP_RAW_*.csv under base directory.").hasArg().argName("command").build());
+        opts.addOption(Option.builder("zi").longOpt("zoomIterations").desc("Maximal number of zoom iterations (default: " + Zoom.DEFAULT_ITERATIONS + ").").hasArg().argName("count").build());
+        opts.addOption(Option.builder("j").longOpt("jobs").desc("Number of input files processed concurrently (default: number of processors).").hasArg().argName("count").build());
+        opts.addOption(Option.builder("f").longOpt("force").desc("Regenerate all files even if unchanged since last generation (ignore target/" + GenerationManifest.MANIFEST_FILE + ").").build());
+        opts.addOption(Option.builder("w").longOpt("watch").desc("After generation, keep running and regenerate profiler whenever input files or templates change.").build());
         opts.addOption(Option.builder("pt").longOpt("parser").desc("Parser that will insert traps").hasArg().argName("action").required(false).build());
         
         CommandLineParser parser = new DefaultParser();
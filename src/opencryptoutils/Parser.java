@@ -1,36 +1,57 @@
 package opencryptoutils;
 
 import com.github.javaparser.JavaParser;
+import com.github.javaparser.Position;
 import com.github.javaparser.ast.CompilationUnit;
 import com.github.javaparser.ast.Node;
 import com.github.javaparser.ast.NodeList;
 import com.github.javaparser.ast.body.BodyDeclaration;
+import com.github.javaparser.ast.body.CallableDeclaration;
+import com.github.javaparser.ast.body.ConstructorDeclaration;
 import com.github.javaparser.ast.body.MethodDeclaration;
 import com.github.javaparser.ast.body.VariableDeclarator;
+import com.github.javaparser.ast.expr.BooleanLiteralExpr;
 import com.github.javaparser.ast.expr.Expression;
+import com.github.javaparser.ast.expr.FieldAccessExpr;
 import com.github.javaparser.ast.expr.IntegerLiteralExpr;
+import com.github.javaparser.ast.expr.MethodCallExpr;
 import com.github.javaparser.ast.expr.NameExpr;
 import com.github.javaparser.ast.stmt.BlockStmt;
 import com.github.javaparser.ast.stmt.BreakStmt;
+import com.github.javaparser.ast.stmt.IfStmt;
 import com.github.javaparser.ast.stmt.Statement;
 import com.github.javaparser.ast.stmt.SwitchEntryStmt;
+import com.github.javaparser.ast.stmt.SwitchStmt;
+import com.github.javaparser.ast.stmt.TryStmt;
 import com.github.javaparser.ast.visitor.GenericListVisitorAdapter;
 import com.github.javaparser.ast.visitor.ModifierVisitor;
+import com.github.javaparser.ast.visitor.Visitable;
 import com.github.javaparser.ast.comments.LineComment;
 import com.github.javaparser.ast.nodeTypes.NodeWithStatements;
+import com.github.javaparser.printer.PrettyPrintVisitor;
+import com.github.javaparser.printer.PrettyPrinterConfiguration;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 
 /**
  * @author Matej Banas
  */
 public final class Parser {
-    private static ArrayList<Byte> constants = new ArrayList<>();
+    private static final Pattern TRAP_TEMPLATE = Pattern.compile("TRAP_(\\w+)_0");
+    private static volatile AstCache astCache = null; // shared parsed files (daemon mode), null if not used
     
     // Noninstantiable utility class
     private Parser(){
@@ -39,18 +60,37 @@ public final class Parser {
     
     public static CompilationUnit parseFile(String filepath) throws IOException{
         File file = new File(filepath);
+        AstCache cache = astCache;
+        if (cache != null) {
+            return cache.parse(file);
+        }
         CompilationUnit compilationUnit = JavaParser.parse(file);
         return compilationUnit;
     }
- 
-    public static void setConstants(ArrayList<Byte> constants) {
-        Parser.constants = constants;
+
+    /**
+     * @return parsed transformed applet files of directory (file name -> compilation unit), PM and PMC are skipped
+     */
+    public static TreeMap<String, CompilationUnit> parseAppletFiles(String outputDirApplet) throws IOException {
+        TreeMap<String, CompilationUnit> units = new TreeMap<>();
+        String[] filesArray = new File(outputDirApplet).list();
+        if (filesArray != null) {
+            for (String fileName : filesArray) {
+                if (fileName.endsWith(".java") && !fileName.equals("PM.java") && !fileName.equals("PMC.java")) {
+                    units.put(fileName, parseFile(new File(outputDirApplet, fileName).getPath()));
+                }
+            }
+        }
+        return units;
     }
 
-    public static ArrayList<Byte> getConstants() {
-        return constants;
+    /**
+     * @param cache cache used by parseFile for all subsequent parsing, null to always parse
+     */
+    public static void setAstCache(AstCache cache) {
+        astCache = cache;
     }
-    
+ 
     /**
      * finds all PERFRAP comments and changes them to code  
      * 
@@ -98,59 +138,164 @@ public final class Parser {
     /**
      *
      * @param compilationUnit compilationUnit created by parsing source file
+     * @param constants byte constants of applet source files (see PerfSourceFile.constants)
      */
-    public static void changeApduTrigger(CompilationUnit compilationUnit) {
+    public static void changeApduTrigger(CompilationUnit compilationUnit, List<Byte> constants) {
         //TODO wrong hex value?
         NodeList<Expression> values = new NodeList<>();
         NameExpr expr = compilationUnit.getTypes().get(0).getMember(2).asFieldDeclaration().getVariables().
                 get(0).getInitializer().get().asArrayInitializerExpr().getValues().get(0).asNameExpr();
         values.add(expr);
-        for (int i = 0; i < getConstants().size(); i++){
-            values.add(new IntegerLiteralExpr(getConstants().get(i)));
+        for (int i = 0; i < constants.size(); i++){
+            values.add(new IntegerLiteralExpr(constants.get(i)));
         }
         compilationUnit.getType(0).getMember(2).asFieldDeclaration().getVariables().get(0).getInitializer().
                 get().asArrayInitializerExpr().setValues(values);
     }
 
     /**
-     * triggers a visitor that finds all constants and adds them to class attribute List constants
-     * they can be used later for apdu triggers
-     * visitor used: GetConstantsVisitor
-     * ?
+     * adds INS_PERF_SETSTOP constant from PM to source class
      *
      * @param compilationUnit compilationUnit created by parsing source file
+     * @param constants constants of source file, INS_PERF_SETSTOP must not collide with them
      */
-    public static void getSourceConstants(CompilationUnit compilationUnit) {
-        ArrayList<Byte> tmpConstants = new ArrayList<>();
-        compilationUnit.findAll(VariableDeclarator.class).stream()
-                .filter(f -> f.getType().isPrimitiveType())
-                .forEach(f -> tmpConstants.addAll(f.accept(new GetConstantsVisitor(), null)));
-        setConstants(tmpConstants);
+    public static void insertStopConstant(CompilationUnit compilationUnit, List<Byte> constants) { 
+        byte x = (byte) 0xf5;
+        while (constants.contains(x)) {
+            x = (byte) (x + 0x01);
+        }
+        BodyDeclaration<?> declaration = JavaParser.parseAnnotationBodyDeclaration("public final static byte INS_PERF_SETSTOP = (byte) " + x +";");
+        compilationUnit.getTypes().get(0).getMembers().addFirst(declaration);
     }
 
     /**
-     * triggers a visitor that adds case statement from PM.java file to switch statement in source file
-     * visitor used: AddSwitchCaseStmntVisitor
+     * adds INS_PERF_TRIGGER constant (INS of command armed by PM.arm) to source class
      *
      * @param compilationUnit compilationUnit created by parsing source file
+     * @param triggerIns INS of profiled trigger command
      */
-    public static void insertSwitchCaseStmnt(CompilationUnit compilationUnit) {
-        compilationUnit.accept(new AddSwitchCaseStmntVisitor(), null);
-        insertStopConstant(compilationUnit);
+    public static void insertTriggerConstant(CompilationUnit compilationUnit, byte triggerIns) {
+        BodyDeclaration<?> declaration = JavaParser.parseAnnotationBodyDeclaration("public final static byte INS_PERF_TRIGGER = (byte) " + triggerIns + ";");
+        compilationUnit.getTypes().get(0).getMembers().addFirst(declaration);
     }
 
     /**
-     * adds INS_PERF_SETSTOP constant from PM to source class
+     * enables single-APDU arming in client PerfTests and sets INS of APDU_TRIGGER accordingly
      *
-     * @param compilationUnit compilationUnit created by parsing source file
+     * @param compilationUnit compilationUnit created by parsing PerfTests file
+     * @param triggerIns INS of profiled trigger command
      */
-    public static void insertStopConstant(CompilationUnit compilationUnit) { 
-        byte x = (byte) 0xf5;
-        while (getConstants().contains(x)) {
-            x = (byte) (x + 0x01);
+    public static void setSingleApduArming(CompilationUnit compilationUnit, byte triggerIns) {
+        compilationUnit.findAll(VariableDeclarator.class).forEach(v -> {
+            if (v.getName().asString().equals("PERF_SINGLE_APDU")) {
+                v.setInitializer(new BooleanLiteralExpr(true));
+            }
+            if (v.getName().asString().equals("APDU_TRIGGER") && v.getInitializer().isPresent()) {
+                NodeList<Expression> values = v.getInitializer().get().asArrayInitializerExpr().getValues();
+                if (values.size() > 1) {
+                    values.set(1, JavaParser.parseExpression(String.format("(byte) 0x%02x", triggerIns)));
+                }
+            }
+        });
+    }
+
+    /**
+     * single pass over parsed source file: numbers template traps PM.check(PMC.TRAP_family_0) of every family
+     * from 1 (see renumberTraps), collects byte constants and inserts INS_PERF_SETSTOP case (and optional arming) into process()
+     * visitor used: TransformSourceFileVisitor
+     *
+     * @param sourceFile source file with parsed compilation unit, constants and traps are filled
+     * @param families base names of trap families to be numbered (e.g., EC_GEN), null for all families found
+     * @param triggerIns INS of profiled trigger command, null if single-APDU arming is not required
+     */
+    public static void transformSourceFile(PerfSourceFile sourceFile, Set<String> families, Byte triggerIns) {
+        TransformSourceFileVisitor visitor = new TransformSourceFileVisitor(sourceFile, families, triggerIns != null);
+        sourceFile.cu.accept(visitor, null);
+        numberTrapsInSourceOrder(sourceFile);
+        sourceFile.packageName = sourceFile.cu.getPackageDeclaration().map(p -> p.getNameAsString()).orElse(null);
+        if (sourceFile.bSwitchCaseInserted) {
+            insertStopConstant(sourceFile.cu, sourceFile.constants);
+        }
+        if (sourceFile.bArmingInserted) {
+            insertTriggerConstant(sourceFile.cu, triggerIns);
+        }
+    }
+
+    /**
+     * numbers traps of every family in order of appearance in source code (visitors use different order,
+     * e.g., else branch or catch clause is visited before then branch or try block)
+     */
+    private static void numberTrapsInSourceOrder(PerfSourceFile sourceFile) {
+        IdentityHashMap<Node, PerfTrap> trapsByArg = new IdentityHashMap<>();
+        for (PerfTrap trap : sourceFile.traps) {
+            trapsByArg.put(trap.trapArg, trap);
+        }
+        ArrayList<PerfTrap> ordered = new ArrayList<>();
+        sourceFile.cu.accept(new PrettyPrintVisitor(new PrettyPrinterConfiguration()) {
+            @Override
+            public void visit(FieldAccessExpr fieldAccessExpr, Void arg) {
+                PerfTrap trap = trapsByArg.get(fieldAccessExpr);
+                if (trap != null) {
+                    ordered.add(trap);
+                }
+                super.visit(fieldAccessExpr, arg);
+            }
+        }, null);
+
+        HashMap<String, Integer> trapCounts = new HashMap<>();
+        HashMap<String, BlockStmt> lastBlocks = new HashMap<>(); // family -> block of its last trap
+        for (PerfTrap trap : ordered) {
+            trap.setIndex(trapCounts.merge(trap.family, 1, Integer::sum));
+            BlockStmt block = trap.trapArg.findAncestor(BlockStmt.class).orElse(null);
+            trap.bBlockStart = (block == null) || (lastBlocks.put(trap.family, block) != block);
+        }
+        sourceFile.traps.clear();
+        sourceFile.traps.addAll(ordered);
+    }
+
+    /**
+     * shifts numbers of traps numbered by transformSourceFile (e.g., family continues from previous file)
+     *
+     * @param sourceFile source file processed by transformSourceFile
+     * @param offsets family -> number of its traps preceding this file
+     */
+    public static void renumberTraps(PerfSourceFile sourceFile, Map<String, Integer> offsets) {
+        for (PerfTrap trap : sourceFile.traps) {
+            Integer offset = offsets.get(trap.family);
+            if (offset != null && offset != 0) {
+                trap.setIndex(trap.index + offset);
+            }
+        }
+    }
+
+    /**
+     * writes transformed source file, positions of its traps in written file are filled
+     *
+     * @param path            path to target file
+     * @param sourceFile      source file processed by transformSourceFile
+     * @throws IOException exception
+     */
+    public static void writeChanges(String path, PerfSourceFile sourceFile) throws IOException {
+        TrapPositionPrintVisitor printVisitor = new TrapPositionPrintVisitor(sourceFile.traps);
+        sourceFile.cu.accept(printVisitor, null);
+        String source = printVisitor.getSource();
+
+        // printer reports line of trap, column is given by its indentation in printed line
+        String[] lines = source.split("\n", -1);
+        for (PerfTrap trap : sourceFile.traps) {
+            for (int line = trap.line; line > 0 && line <= lines.length; line++) {
+                int column = lines[line - 1].indexOf("PMC." + trap.name);
+                if (column >= 0) {
+                    trap.line = line;
+                    trap.column = lines[line - 1].lastIndexOf("PM.check", column) + 1;
+                    break;
+                }
+            }
+        }
+
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(path))) {
+            bw.write(source);
         }
-        BodyDeclaration<?> declaration = JavaParser.parseAnnotationBodyDeclaration("public final static byte INS_PERF_SETSTOP = (byte) " + x +";");
-        compilationUnit.getTypes().get(0).getMembers().addFirst(declaration);
     }
 
     /**
@@ -190,6 +335,325 @@ public final class Parser {
     }
 
 
+    /**
+     * @return family of template trap PM.check(PMC.TRAP_family_0), null if call is not template trap
+     */
+    static String getTrapTemplateFamily(MethodCallExpr call) {
+        if (call.getArguments().size() != 1 || !call.getArgument(0).isFieldAccessExpr()) {
+            return null;
+        }
+        Matcher matcher = TRAP_TEMPLATE.matcher(call.getArgument(0).asFieldAccessExpr().getNameAsString());
+        return (matcher.matches() && isTrapTemplate(call, matcher.group())) ? matcher.group(1) : null;
+    }
+
+    /**
+     * @return true if call is template trap PM.check(PMC.templateName)
+     */
+    static boolean isTrapTemplate(MethodCallExpr call, String templateName) {
+        if (!call.getNameAsString().equals("check") || call.getArguments().size() != 1
+                || !call.getScope().isPresent() || !call.getScope().get().toString().equals("PM")) {
+            return false;
+        }
+        Expression arg = call.getArgument(0);
+        return arg.isFieldAccessExpr() && arg.asFieldAccessExpr().getNameAsString().equals(templateName)
+                && arg.asFieldAccessExpr().getScope().toString().equals("PMC");
+    }
+
+    /**
+     * density of traps inserted by insertAutoTraps
+     */
+    public enum TrapDensity {
+        STATEMENT,  // before every statement and at the end of every block
+        BLOCK,      // at the start of every block and after every compound statement (start of basic blocks)
+        API         // before and after every statement calling JavaCard API (method not declared in applet files)
+    }
+
+    /**
+     * inserts template traps PM.check(PMC.TRAP_family_0) into body of method or constructor, traps are
+     * then numbered by transformSourceFile as if inserted by hand. Trap is never inserted where it would
+     * be unreachable (after return, throw, endless loop...) or before explicit constructor invocation
+     *
+     * @param declaration method or constructor to instrument
+     * @param family trap family of inserted traps
+     * @param density which statements get trap
+     * @param graph call graph of applet files used to detect API calls (TrapDensity.API)
+     * @return number of inserted traps
+     */
+    public static int insertAutoTraps(CallableDeclaration<?> declaration, String family, TrapDensity density, CallGraph graph) {
+        BlockStmt body = (declaration instanceof ConstructorDeclaration) ? ((ConstructorDeclaration) declaration).getBody()
+                : ((MethodDeclaration) declaration).getBody().orElse(null);
+        if (body == null) {
+            return 0;
+        }
+        ArrayList<NodeWithStatements<?>> containers = new ArrayList<>();
+        for (Node node : body.findAll(Node.class)) {
+            if (node instanceof NodeWithStatements && node.findAncestor(CallableDeclaration.class).orElse(null) == declaration) {
+                containers.add((NodeWithStatements<?>) node);
+            }
+        }
+        int numInserted = 0;
+        for (NodeWithStatements<?> container : containers) {
+            NodeList<Statement> statements = container.getStatements();
+            ArrayList<Statement> original = new ArrayList<>(statements);
+            for (int i = 0; i < original.size(); i++) {
+                Statement statement = original.get(i);
+                Statement previous = (i > 0) ? original.get(i - 1) : null;
+                boolean bInsert;
+                switch (density) {
+                    case BLOCK:
+                        bInsert = (previous == null) || isCompoundStatement(previous) || previous.isExplicitConstructorInvocationStmt();
+                        break;
+                    case API:
+                        bInsert = containsApiCall(statement, graph) || (previous != null && !isCompoundStatement(previous) && containsApiCall(previous, graph));
+                        break;
+                    default:
+                        bInsert = true;
+                }
+                if (bInsert && !isTrap(statement) && (previous == null || !isTrap(previous)) && !statement.isExplicitConstructorInvocationStmt()) {
+                    insertBefore(statements, createTrapTemplate(family), statement);
+                    numInserted++;
+                }
+            }
+            if (original.isEmpty()) {
+                continue;
+            }
+            // trap at the end of block measures its last statement
+            Statement last = original.get(original.size() - 1);
+            boolean bInsertLast;
+            switch (density) {
+                case BLOCK:
+                    bInsertLast = (container == body) || isCompoundStatement(last);
+                    break;
+                case API:
+                    bInsertLast = !isCompoundStatement(last) && containsApiCall(last, graph);
+                    break;
+                default:
+                    bInsertLast = true;
+            }
+            if (bInsertLast && !isTrap(last) && canCompleteNormally(last)) {
+                statements.add(createTrapTemplate(family));
+                numInserted++;
+            }
+        }
+        return numInserted;
+    }
+
+    /**
+     * @return statements of method or constructor (not of nested classes) in pre-order, traps are skipped.
+     * Index of statement in the list is the same in input file and in transformed file with traps.
+     */
+    public static List<Statement> getStatements(CallableDeclaration<?> declaration) {
+        ArrayList<Statement> statements = new ArrayList<>();
+        for (Statement statement : declaration.findAll(Statement.class)) {
+            if (!isTrap(statement) && statement.findAncestor(CallableDeclaration.class).orElse(null) == declaration) {
+                statements.add(statement);
+            }
+        }
+        return statements;
+    }
+
+    /**
+     * @return true if trap can be inserted before statement and there is no trap before it already
+     */
+    static boolean canInsertTrapBefore(Statement statement) {
+        Node parent = statement.getParentNode().orElse(null);
+        if (!(parent instanceof NodeWithStatements) || isTrap(statement) || statement.isExplicitConstructorInvocationStmt()) {
+            return false;
+        }
+        Statement previous = null;
+        for (Statement sibling : ((NodeWithStatements<?>) parent).getStatements()) {
+            if (sibling == statement) {
+                break;
+            }
+            previous = sibling;
+        }
+        return previous == null || !isTrap(previous);
+    }
+
+    /**
+     * inserts template traps PM.check(PMC.TRAP_family_0) before selected statements of method or constructor
+     * (used to refine already measured segment)
+     *
+     * @param declaration method or constructor to instrument
+     * @param family trap family of inserted traps
+     * @param ordinals indexes of statements into getStatements(declaration)
+     * @return number of inserted traps
+     */
+    public static int insertTrapsBefore(CallableDeclaration<?> declaration, String family, Set<Integer> ordinals) {
+        List<Statement> statements = getStatements(declaration);
+        int numInserted = 0;
+        for (int ordinal : ordinals) {
+            if (ordinal < statements.size() && canInsertTrapBefore(statements.get(ordinal))) {
+                Statement statement = statements.get(ordinal);
+                insertBefore(((NodeWithStatements<?>) statement.getParentNode().get()).getStatements(), createTrapTemplate(family), statement);
+                numInserted++;
+            }
+        }
+        return numInserted;
+    }
+
+    /**
+     * NodeList.addBefore() looks for position by equals(), which would match first structurally equal statement
+     */
+    static void insertBefore(NodeList<Statement> statements, Statement inserted, Statement before) {
+        for (int i = 0; i < statements.size(); i++) {
+            if (statements.get(i) == before) {
+                statements.add(i, inserted);
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Statement to insert before not found");
+    }
+
+    static Statement createTrapTemplate(String family) {
+        return JavaParser.parseStatement(String.format("PM.check(PMC.TRAP_%s_0);", family));
+    }
+
+    /**
+     * @return true if statement is call PM.check() (template or numbered trap)
+     */
+    static boolean isTrap(Statement statement) {
+        if (!statement.isExpressionStmt() || !statement.asExpressionStmt().getExpression().isMethodCallExpr()) {
+            return false;
+        }
+        MethodCallExpr call = statement.asExpressionStmt().getExpression().asMethodCallExpr();
+        return call.getNameAsString().equals("check") && call.getScope().isPresent() && call.getScope().get().toString().equals("PM");
+    }
+
+    static boolean isCompoundStatement(Statement statement) {
+        return statement.isIfStmt() || statement.isForStmt() || statement.isForeachStmt() || statement.isWhileStmt() || statement.isDoStmt()
+                || statement.isSwitchStmt() || statement.isTryStmt() || statement.isBlockStmt() || statement.isSynchronizedStmt() || statement.isLabeledStmt();
+    }
+
+    /**
+     * @return true if statement itself (not its nested statements) calls JavaCard API
+     */
+    static boolean containsApiCall(Statement statement, CallGraph graph) {
+        return statement.findFirst(Expression.class, e -> graph.isApiCall(e) && e.findAncestor(Statement.class).orElse(null) == statement).isPresent();
+    }
+
+    /**
+     * conservative approximation of JLS 14.21: false if statement may not complete normally,
+     * so statement placed after it could be rejected by compiler as unreachable
+     */
+    static boolean canCompleteNormally(Statement statement) {
+        if (statement.isReturnStmt() || statement.isThrowStmt() || statement.isBreakStmt() || statement.isContinueStmt()) {
+            return false;
+        }
+        if (statement.isBlockStmt()) {
+            NodeList<Statement> statements = statement.asBlockStmt().getStatements();
+            return statements.isEmpty() || canCompleteNormally(statements.get(statements.size() - 1));
+        }
+        if (statement.isIfStmt()) {
+            IfStmt ifStmt = statement.asIfStmt();
+            return !ifStmt.getElseStmt().isPresent() || canCompleteNormally(ifStmt.getThenStmt()) || canCompleteNormally(ifStmt.getElseStmt().get());
+        }
+        if (statement.isWhileStmt()) {
+            return !isConstantTrue(statement.asWhileStmt().getCondition()) || hasBreak(statement);
+        }
+        if (statement.isDoStmt()) {
+            return !isConstantTrue(statement.asDoStmt().getCondition()) || hasBreak(statement);
+        }
+        if (statement.isForStmt()) {
+            Optional<Expression> compare = statement.asForStmt().getCompare();
+            return (compare.isPresent() && !isConstantTrue(compare.get())) || hasBreak(statement);
+        }
+        if (statement.isSwitchStmt()) {
+            NodeList<SwitchEntryStmt> entries = statement.asSwitchStmt().getEntries();
+            if (entries.isEmpty() || hasBreak(statement) || entries.stream().noneMatch(e -> !e.getLabel().isPresent())) {
+                return true; // no default: switch may be skipped
+            }
+            NodeList<Statement> lastStatements = entries.get(entries.size() - 1).getStatements();
+            return lastStatements.isEmpty() || canCompleteNormally(lastStatements.get(lastStatements.size() - 1));
+        }
+        if (statement.isTryStmt()) {
+            TryStmt tryStmt = statement.asTryStmt();
+            boolean bBodyCompletes = canCompleteNormally(tryStmt.getTryBlock())
+                    || tryStmt.getCatchClauses().stream().anyMatch(c -> canCompleteNormally(c.getBody()));
+            return bBodyCompletes && (!tryStmt.getFinallyBlock().isPresent() || canCompleteNormally(tryStmt.getFinallyBlock().get()));
+        }
+        if (statement.isLabeledStmt()) {
+            return canCompleteNormally(statement.asLabeledStmt().getStatement());
+        }
+        if (statement.isSynchronizedStmt()) {
+            return canCompleteNormally(statement.asSynchronizedStmt().getBody());
+        }
+        return true;
+    }
+
+    private static boolean isConstantTrue(Expression expression) {
+        return expression.isBooleanLiteralExpr() && expression.asBooleanLiteralExpr().getValue();
+    }
+
+    /**
+     * @return true if loop or switch contains unlabeled break leaving it
+     */
+    private static boolean hasBreak(Statement statement) {
+        return statement.findFirst(BreakStmt.class, b -> !b.getLabel().isPresent()
+                && b.findAncestor(Statement.class, s -> s.isWhileStmt() || s.isDoStmt() || s.isForStmt() || s.isForeachStmt() || s.isSwitchStmt()).orElse(null) == statement).isPresent();
+    }
+
+    /**
+     * inserts INS_PERF_SETSTOP case into first switch on apdu buffer in process method
+     *
+     * @return true if case was inserted, false if there is no switch or the case is already present
+     */
+    static boolean insertSetStopCase(MethodDeclaration methodDeclaration) {
+        // switch on INS may be nested (e.g., inside try block)
+        Optional<SwitchStmt> switchStmt = methodDeclaration.findFirst(SwitchStmt.class, f -> f.getSelector().isArrayAccessExpr());
+        if (!switchStmt.isPresent()) {
+            return false;
+        }
+        // applet already prepared for profiling (e.g., case moved manually from PM.java)
+        if (switchStmt.get().getEntries().stream().anyMatch(e -> e.getLabel().isPresent() && e.getLabel().get().toString().equals("INS_PERF_SETSTOP"))) {
+            return false;
+        }
+        String name = switchStmt.get().getSelector().asArrayAccessExpr().getName().toString();
+        NodeList<Statement> toBeInserted = new NodeList<>();
+        toBeInserted.add(JavaParser.parseStatement("PM.m_perfStop = Util.makeShort(" + name + "[ISO7816.OFFSET_CDATA], " + name + "[(short) (ISO7816.OFFSET_CDATA + 1)]);"));
+        // optional hit count (number of trap occurrences until exception is thrown)
+        toBeInserted.add(JavaParser.parseStatement("PM.setStopHit((" + name + "[ISO7816.OFFSET_LC] >= 4) ? Util.makeShort(" + name + "[(short) (ISO7816.OFFSET_CDATA + 2)], " + name + "[(short) (ISO7816.OFFSET_CDATA + 3)]) : (short) 1);"));
+        // empty trap pair used by client for calibration of measurement overhead
+        toBeInserted.add(JavaParser.parseStatement("PM.check(PMC.TRAP_CALIB_1);"));
+        toBeInserted.add(JavaParser.parseStatement("PM.check(PMC.TRAP_CALIB_2);"));
+        toBeInserted.add(new BreakStmt().removeLabel());
+        NodeList<SwitchEntryStmt> entryStmts = switchStmt.get().getEntries();
+        entryStmts.addBefore(new SwitchEntryStmt(new NameExpr("INS_PERF_SETSTOP"), toBeInserted), switchStmt.get().getEntry(entryStmts.size() - 1));
+        return true;
+    }
+
+    /**
+     * inserts single-APDU arming PM.arm() before first switch on apdu buffer in process method
+     *
+     * @return true if arming was inserted, false if there is no switch or PM.arm() is already called
+     */
+    static boolean insertArming(MethodDeclaration methodDeclaration) {
+        Optional<SwitchStmt> switchStmt = methodDeclaration.findFirst(SwitchStmt.class, f -> f.getSelector().isArrayAccessExpr());
+        if (!switchStmt.isPresent() || methodDeclaration.findFirst(MethodCallExpr.class, f -> f.toString().startsWith("PM.arm(")).isPresent()) {
+            return false;
+        }
+        String name = switchStmt.get().getSelector().asArrayAccessExpr().getName().toString();
+        Optional<NodeList<Statement>> statements = switchStmt.get().getParentNode()
+                .filter(parent -> parent instanceof NodeWithStatements)
+                .map(parent -> ((NodeWithStatements<?>) parent).getStatements());
+        statements.ifPresent(s -> s.addBefore(JavaParser.parseStatement("PM.arm(" + name + ", INS_PERF_TRIGGER);"), switchStmt.get()));
+        return statements.isPresent();
+    }
+
+    /**
+     * changes package declaration of compilation unit b to given package
+     *
+     * @param packageName package name, null for default package
+     * @param b compilationUnit created by parsing file of which we want to change the package declaration
+     */
+    public static void changePackageDeclaration(String packageName, CompilationUnit b) {
+        if (packageName != null) {
+            b.setPackageDeclaration(packageName);
+        } else {
+            b.removePackageDeclaration();
+        }
+    }
+
     /**
      * visitor that gets all constants
      */
@@ -207,34 +671,94 @@ public final class Parser {
         }
     }
 
-    
     /**
-     * visitor that adds switch case statement
+     * visitor performing all transformations of source file in single traversal (see transformSourceFile)
      */
-    private static class AddSwitchCaseStmntVisitor extends ModifierVisitor<Void> {
+    private static class TransformSourceFileVisitor extends ModifierVisitor<Void> {
+        private final PerfSourceFile sourceFile;
+        private final Set<String> families;
+        private final HashMap<String, Integer> trapCounts = new HashMap<>();
+        private final boolean bSingleApduArming;
+        private String methodName = null;
+
+        TransformSourceFileVisitor(PerfSourceFile sourceFile, Set<String> families, boolean bSingleApduArming) {
+            this.sourceFile = sourceFile;
+            this.families = families;
+            this.bSingleApduArming = bSingleApduArming;
+        }
+
         @Override
         public MethodDeclaration visit(MethodDeclaration methodDeclaration, Void arg) {
+            String outerMethodName = methodName;
+            methodName = methodDeclaration.getNameAsString();
             super.visit(methodDeclaration, arg);
+            methodName = outerMethodName;
             if (methodDeclaration.getName().asString().equals("process")) {
-                NodeList<Statement> statements = methodDeclaration.getBody().get().getStatements();
-                BlockStmt body = new BlockStmt();
-                NodeList<Statement> toBeInserted = new NodeList<>();
-
-                for (int i = 0; i < statements.size(); i++) {
-                    if (statements.get(i).isSwitchStmt()) {
-                        String name = statements.get(i).asSwitchStmt().getSelector().asArrayAccessExpr().getName().toString();
-                        toBeInserted.add(JavaParser.parseStatement("PM.m_perfStop = Util.makeShort(" + name + "[ISO7816.OFFSET_CDATA], " + name + "[(short) (ISO7816.OFFSET_CDATA + 1)]);"));
-                        toBeInserted.add(new BreakStmt().removeLabel());
-                        NodeList<SwitchEntryStmt> entryStmts = statements.get(i).asSwitchStmt().getEntries();
-                        entryStmts.addBefore(new SwitchEntryStmt(new NameExpr("INS_PERF_SETSTOP"), toBeInserted), statements.get(i).asSwitchStmt().getEntry(entryStmts.size() - 1));
-                        statements.get(i).asSwitchStmt().setEntries(entryStmts);
-                    }
-                    body.addStatement(statements.get(i));
+                sourceFile.bSwitchCaseInserted |= insertSetStopCase(methodDeclaration);
+                if (bSingleApduArming) {
+                    sourceFile.bArmingInserted |= insertArming(methodDeclaration);
                 }
-                methodDeclaration.setBody(body);
             }
             return methodDeclaration;
         }
+
+        @Override
+        public ConstructorDeclaration visit(ConstructorDeclaration constructorDeclaration, Void arg) {
+            String outerMethodName = methodName;
+            methodName = constructorDeclaration.getNameAsString();
+            super.visit(constructorDeclaration, arg);
+            methodName = outerMethodName;
+            return constructorDeclaration;
+        }
+
+        @Override
+        public Visitable visit(VariableDeclarator variableDeclarator, Void arg) {
+            if (variableDeclarator.getType().isPrimitiveType()) {
+                sourceFile.constants.addAll(variableDeclarator.accept(new GetConstantsVisitor(), null));
+            }
+            return super.visit(variableDeclarator, arg);
+        }
+
+        @Override
+        public Visitable visit(MethodCallExpr methodCallExpr, Void arg) {
+            super.visit(methodCallExpr, arg);
+            String family = getTrapTemplateFamily(methodCallExpr);
+            if (family != null && (families == null || families.contains(family))) {
+                // replace by trap with counter (renumbered in order of occurrence by numberTrapsInSourceOrder)
+                int index = trapCounts.merge(family, 1, Integer::sum);
+                PerfTrap trap = new PerfTrap(family, index, sourceFile.fileName, methodName);
+                trap.trapArg = methodCallExpr.getArgument(0).asFieldAccessExpr();
+                trap.trapArg.setName(trap.name);
+                sourceFile.traps.add(trap);
+            }
+            return methodCallExpr;
+        }
+    }
+
+    /**
+     * pretty printer (same output as CompilationUnit.toString()) which records line of numbered traps
+     */
+    private static class TrapPositionPrintVisitor extends PrettyPrintVisitor {
+        private final HashMap<String, PerfTrap> traps = new HashMap<>();
+
+        TrapPositionPrintVisitor(List<PerfTrap> traps) {
+            super(new PrettyPrinterConfiguration());
+            for (PerfTrap trap : traps) {
+                this.traps.put(trap.name, trap);
+            }
+        }
+
+        @Override
+        public void visit(MethodCallExpr methodCallExpr, Void arg) {
+            if (methodCallExpr.getArguments().size() == 1 && methodCallExpr.getArgument(0).isFieldAccessExpr()) {
+                PerfTrap trap = traps.get(methodCallExpr.getArgument(0).asFieldAccessExpr().getNameAsString());
+                if (trap != null && isTrapTemplate(methodCallExpr, trap.name)) {
+                    Position cursor = printer.getCursor();
+                    trap.line = cursor.line;
+                }
+            }
+            super.visit(methodCallExpr, arg);
+        }
     }
     
     /**
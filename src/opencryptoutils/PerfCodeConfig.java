@@ -1,5 +1,7 @@
 package opencryptoutils;
 
+import java.util.ArrayList;
+
 /**
  *
  * @author Petr Svenda
@@ -13,6 +15,9 @@ public class PerfCodeConfig {
     public String apduCode;
     public int numStops;
     public int baseStopCode;
+    public Byte triggerIns = null; // INS of profiled command for single-APDU arming, null if not used
+    public ArrayList<PerfTrap> traps = new ArrayList<>(); // traps of family in order of numbering (may be empty)
+    public int[] trapIDs = null; // allocated trapIDs, [0] is TRAP_x_COMPLETE, [i] is TRAP_x_i
 
     PerfCodeConfig(String methodName, String insBase, String testName, int numStops, int baseStopCode) {
         this.methodName = methodName;
@@ -31,5 +36,6 @@ public class PerfCodeConfig {
         this.testName = other.testName;
         this.numStops = other.numStops;
         this.baseStopCode = other.baseStopCode;
+        this.triggerIns = other.triggerIns;
     }
 }
@@ -1,27 +1,105 @@
 package opencryptoutils;
 
-import com.github.javaparser.JavaParser;
 import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.expr.MethodCallExpr;
+import opencryptoutils.CallGraph.MethodNode;
+import opencryptoutils.Parser.TrapDensity;
+import opencryptoutils.TrapReachability.Reachability;
 import static opencryptoutils.Parser.*;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import static java.nio.file.StandardWatchEventKinds.*;
 import static java.nio.file.StandardCopyOption.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
  * @author Petr Svenda
  */
 public class PerfCodeGenerator {
-    public final static int MAX_TRAPS_PER_METHOD = 16;
+    public final static long WATCH_DEBOUNCE_MS = 100; // quiet period after last change before regeneration starts
+    public final static int TRAP_ID_BLOCKS = 0x10; // statement blocks per method field of trapID
+    public final static int TRAP_ID_STATEMENTS = 0x10; // traps per statement block (statement 0 is not used, except TRAP_x_COMPLETE)
+    public final static String TRAP_MAP_FILE = "jcprofiler.trapmap"; // trap source map used by client for annotation of applet files
+
+    public int numJobs = Runtime.getRuntime().availableProcessors(); // number of input files processed concurrently
+    public boolean bUseCache = true; // if true, files and templates unchanged since last generation (see GenerationManifest) are not regenerated
+    public Set<String> trapFamilies = null; // base names of trap families to be numbered (PM.check(PMC.TRAP_<name>_0)), null = all found
+    public String autoTrapMethods = null; // methods instrumented automatically: list of "all", "reachable" (from process()) or [Class.]method, null = templates only
+    public TrapDensity autoTrapDensity = TrapDensity.STATEMENT;
+    public final LinkedHashMap<String, Refinement> refinements = new LinkedHashMap<>(); // Class.method(types) -> statements with finer traps (see Zoom)
+
+    /**
+     * Statements of single method which get trap inserted before them to split measured segment.
+     */
+    static class Refinement {
+        final String family;                                    // trap family of inserted traps
+        final TreeSet<Integer> statements = new TreeSet<>();    // indexes into Parser.getStatements()
+
+        Refinement(String family) {
+            this.family = family;
+        }
+
+        @Override
+        public String toString() {
+            return family + statements;
+        }
+    }
+
+    /**
+     * Methods selected for automatic trap insertion, together with parsed files they belong to.
+     */
+    static class AutoTrapPlan {
+        final ConcurrentHashMap<String, CompilationUnit> units = new ConcurrentHashMap<>(); // parsed, not yet transformed files
+        final LinkedHashMap<MethodNode, String> methods = new LinkedHashMap<>(); // selected method -> trap family
+        final LinkedHashMap<MethodNode, Refinement> refinedMethods = new LinkedHashMap<>();
+        CallGraph graph;
+        Set<String> trapFamilies;   // trapFamilies extended by families of selected methods, null = all
+        String inputsHash;  // hash of all input files (selection may depend on any of them)
+    }
+
+    /**
+     * Result of processing of single input applet file.
+     */
+    static class InputFileResult {
+        String fileName;
+        String filePath;
+        PerfSourceFile sourceFile = null;       // null if file is not java source (copied only)
+        String hash = null;                     // content hash of input file
+        boolean bWritten = false;               // true if transformed file is already in target (cached)
+    }
 
     void generatePerfStopStrings() {
         ArrayList<PerfCodeConfig> testList = new ArrayList<>();
@@ -55,7 +133,12 @@ public class PerfCodeGenerator {
         testList.add(new PerfCodeConfig("short multiplication_x(", "ECPOINT_MULT_X", "ECPoint_multiplication_x", 5, 0x75c0));
         testList.add(new PerfCodeConfig("void negate(", "ECPOINT_NEGATE", "ECPoint_negate", 5, 0x75b0));
         
-        generatePerfStopStrings(testList);
+        try {
+            allocateTrapIDs(testList, testList.get(0).baseStopCode);
+            generatePerfStopStrings(testList);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
     }
 
     
@@ -63,45 +146,61 @@ public class PerfCodeGenerator {
     void generatePerfStopStrings(ArrayList<PerfCodeConfig> testList) {
                 
         for (PerfCodeConfig item : testList) {
-            generatePerfTrapsStrings_TrapIDs(item.baseName, item.numStops, item.baseStopCode);
-            System.out.println();
+            System.out.println(generatePerfTrapsStrings_TrapIDs(item));
         }
         System.out.println("\n ------------------ \n");
         for (PerfCodeConfig item : testList) {
-            generatePerfTrapsStrings_Mappings(item.baseName, item.numStops);
-            System.out.println();
+            System.out.println(generatePerfTrapsStrings_Mappings(item.baseName, item.numStops));
         }
         System.out.println("\n ------------------ \n");
 
         for (PerfCodeConfig item : testList) {
-            generatePerfTrapsStrings_InitList(item.baseName, item.testName, item.numStops);
+            System.out.println(generatePerfTrapsStrings_InitList(item.baseName, item.testName, item.numStops));
         }
         System.out.println("\n ------------------ \n");
 
     }
 
-    static String generatePerfTrapsStrings_TrapIDs(String baseName, int numStops, int baseOffset) {
-        String result = String.format("    public static final short %s = (short) 0x%s;\n", baseName, Integer.toHexString(baseOffset));
-        for (int i = 1; i <= numStops; i++) {
-            result += String.format("    public static final short %s_%d = (short) (%s + %d);\n", baseName, i, baseName, i);
+    /**
+     * @return PMC constants of trap family, traps of one statement block are declared together
+     */
+    static String generatePerfTrapsStrings_TrapIDs(PerfCodeConfig item) {
+        String result = String.format("    public static final short %s = (short) 0x%04x;\n", item.baseName, item.trapIDs[0]);
+        String declaration = "";
+        for (int i = 1; i <= item.numStops; i++) {
+            if (!declaration.isEmpty() && (item.trapIDs[i] & 0xfff0) != (item.trapIDs[i - 1] & 0xfff0)) {
+                result += String.format("    public static final short %s;\n", declaration);
+                declaration = "";
+            }
+            declaration += String.format("%s%s_%d = (short) 0x%04x", declaration.isEmpty() ? "" : ", ", item.baseName, i, item.trapIDs[i]);
         }
-        result += String.format("    public static final short %s_COMPLETE = %s;\n", baseName, baseName);
+        if (!declaration.isEmpty()) {
+            result += String.format("    public static final short %s;\n", declaration);
+        }
+        result += String.format("    public static final short %s_COMPLETE = %s;\n", item.baseName, item.baseName);
         
         return result;
     }
 
     static String generatePerfTrapsStrings_Mappings(String baseName, int numStops) {
         String indent = "        ";
-        String result = "";
+        String result = String.format("%saddPerfMapping(\"%s\", PMC.%s_COMPLETE", indent, baseName, baseName);
         for (int i = 1; i <= numStops; i++) {
-            result += String.format("%sPERF_TRAPS_MAPPING.put(PMC.%s_%d, \"%s_%d\");\n", indent, baseName, i, baseName, i);
+            result += String.format(", PMC.%s_%d", baseName, i);
         }
-        result += String.format("%sPERF_TRAPS_MAPPING.put(PMC.%s_COMPLETE, \"%s_COMPLETE\");\n", indent, baseName, baseName);
+        result += ");\n";
         
         return result;
     }
 
     static String generatePerfTrapsStrings_InitList(String baseName, String testName, int numStops) {
+        return generatePerfTrapsStrings_InitList(baseName, testName, numStops, null);
+    }
+
+    /**
+     * @param reachability reachability of traps TRAP_x_1..n (see TrapReachability), null if not analysed
+     */
+    static String generatePerfTrapsStrings_InitList(String baseName, String testName, int numStops, Reachability[] reachability) {
         String indent = "            ";
         String sanitizedTestName = testName.replace(" ", "_").replace("(", "_").replace(")", "_");
         String result = String.format("%sshort[] PERFTRAPS_%s = {", indent, sanitizedTestName);
@@ -109,11 +208,34 @@ public class PerfCodeGenerator {
             result += String.format("PMC.%s_%d, ", baseName, i);
         }
         result += String.format("PMC.%s_COMPLETE};\n", baseName);
-        result += String.format("%scfg.perfStops = PERFTRAPS_%s;\n", indent, sanitizedTestName);
-        result += String.format("%scfg.perfStopComplete = PMC.%s_COMPLETE;", indent, baseName);
+        String reachabilityArg = "";
+        if (reachability != null) {
+            result += String.format("%sTrapReachability[] REACHABILITY_%s = {", indent, sanitizedTestName);
+            for (int i = 0; i < numStops; i++) {
+                result += String.format("%sTrapReachability.%s", (i > 0) ? ", " : "", reachability[i]);
+            }
+            result += "}; // static analysis of generator, dead traps are not measured\n";
+            reachabilityArg = String.format(", REACHABILITY_%s", sanitizedTestName);
+        }
+        result += String.format("%scfg.perfFamilies.add(new PerfTrapFamily(\"%s\", APDU_TRIGGER, PERFTRAPS_%s, PMC.%s_COMPLETE%s)); // TODO: set APDU which will trigger the profiled method\n", indent, testName, sanitizedTestName, baseName, reachabilityArg);
         
         return result;
-    }    
+    }
+
+    /**
+     * @return reachability of traps of family in order of numbering, null if not analysed
+     */
+    static Reachability[] getReachability(PerfCodeConfig item) {
+        if (item.traps.isEmpty() || item.traps.get(0).reachability == null) {
+            return null;
+        }
+        Reachability[] reachability = new Reachability[item.numStops];
+        Arrays.fill(reachability, Reachability.REACHABLE);
+        for (PerfTrap trap : item.traps) {
+            reachability[trap.index - 1] = trap.reachability;
+        }
+        return reachability;
+    }
 
     void insertPerfTraps(PerfCodeConfig cfg, String filePath) {
         try {
@@ -159,7 +281,6 @@ public class PerfCodeGenerator {
     }
     
     void generatePersonalizedProfiler(PerfCodeConfig baseCfg, String baseDirectory) throws IOException {
-        ArrayList<PerfCodeConfig> filesWithTraps = new ArrayList<>();
 
         //
         // Process all input files, try to find performance trap template and transform files with relevant traps 
@@ -170,66 +291,100 @@ public class PerfCodeGenerator {
         String outputDirClient = String.format("%s/target/profiler_client/", baseDirectory);
         new File(outputDirClient).mkdirs();
         String baseAppletFilesDir = String.format("%s/templates/input_applet_files/", baseDirectory);
-        File dir = new File(baseAppletFilesDir);
-        String[] filesArray = dir.list();
-        
-        CompilationUnit cu = null;
-        if ((filesArray != null) && (dir.isDirectory() == true)) {
+        String templateAppletDir = String.format("%s/templates/template_profiler_applet/", baseDirectory);
+        String templateClientDir = String.format("%s/templates/template_profiler_client/", baseDirectory);
 
-            for (String fileName : filesArray) {
-                String filePath = baseAppletFilesDir + fileName;
-                File inputFile = new File(filePath);
-                if (!inputFile.isDirectory()) {
-                    // Copy file from templates to target
-                    String targetFilePathOrig = outputDirApplet + fileName + ".orig";
-                    String targetFilePath = outputDirApplet + fileName;
-                    Files.copy(inputFile.toPath(), (new File(targetFilePathOrig)).toPath(), REPLACE_EXISTING);
-
-                    PerfCodeConfig cfg = new PerfCodeConfig(baseCfg);
-                    if (enumeratePerfTrapsFile(cfg, targetFilePathOrig, targetFilePath)) {
-                        filesWithTraps.add(cfg);
-                    }
-                    
-                    // Parser inserts stop const and case statement
-                    if (!fileName.equals("OCUnitTests.java")) {
-                        cu = JavaParser.parse(inputFile);
-                        getSourceConstants(cu);
-                        insertSwitchCaseStmnt(cu);
-                        writeChanges(filePath, cu);
+        // manifest of previous generation, files with unchanged content are not processed again
+        String manifestPath = String.format("%s/target/%s", baseDirectory, GenerationManifest.MANIFEST_FILE);
+        GenerationManifest manifest = new GenerationManifest();
+        AutoTrapPlan autoTraps = (autoTrapMethods != null || !refinements.isEmpty()) ? prepareAutoTraps(baseAppletFilesDir) : null;
+        manifest.optionsHash = GenerationManifest.hash(String.format("%s %x %s", (trapFamilies != null) ? new TreeSet<>(trapFamilies) : "*", baseCfg.baseStopCode, baseCfg.triggerIns)
+                + ((autoTraps != null) ? String.format(" %s %s %s %s", autoTrapMethods, autoTrapDensity, refinements, autoTraps.inputsHash) : ""));
+        manifest.templatesHash = GenerationManifest.hash(GenerationManifest.hashDirectory(new File(templateAppletDir)) + GenerationManifest.hashDirectory(new File(templateClientDir)));
+        GenerationManifest previous = bUseCache ? GenerationManifest.load(manifestPath) : new GenerationManifest();
+        if (!previous.optionsHash.equals(manifest.optionsHash)) {
+            previous = new GenerationManifest(); // different traps or arming, all files must be regenerated
+        }
+        
+        // files are processed concurrently, results are merged in order of file names (deterministic trapIDs)
+        String packageName = null;
+        ArrayList<Byte> constants = new ArrayList<>();
+        LinkedHashMap<String, PerfCodeConfig> families = new LinkedHashMap<>(); // in order of first occurrence
+        for (InputFileResult fileResult : processInputFiles(baseCfg, baseAppletFilesDir, outputDirApplet, previous, autoTraps)) {
+            if (fileResult.sourceFile != null) {
+                for (PerfTrap trap : fileResult.sourceFile.traps) {
+                    PerfCodeConfig family = families.get(trap.family);
+                    if (family == null) {
+                        family = new PerfCodeConfig(trap.methodName, trap.family, trap.family, 0, baseCfg.baseStopCode);
+                        family.triggerIns = baseCfg.triggerIns;
+                        families.put(trap.family, family);
                     }
+                    family.traps.add(trap);
+                    family.numStops++;
                 }
+                if (fileResult.sourceFile.packageName != null) {
+                    packageName = fileResult.sourceFile.packageName;
+                }
+                if (!fileResult.sourceFile.constants.isEmpty()) { // helper classes without constants do not reset trigger
+                    constants = fileResult.sourceFile.constants;
+                }
+                manifest.put(fileResult.sourceFile, fileResult.hash);
+            }
+        }
+        ArrayList<PerfCodeConfig> trapFamiliesFound = new ArrayList<>(families.values());
+        allocateTrapIDs(trapFamiliesFound, baseCfg.baseStopCode);
+        analyzeReachability(outputDirApplet, trapFamiliesFound, baseCfg.triggerIns, manifest, previous);
+        // positions of traps may change without change of traps themselves, map is always rewritten
+        saveTrapSourceMap(trapFamiliesFound, outputDirApplet, String.format("%s%s", outputDirClient, TRAP_MAP_FILE));
+
+        StringBuilder profilerInputs = new StringBuilder(manifest.optionsHash + manifest.templatesHash);
+        for (PerfCodeConfig family : trapFamiliesFound) {
+            profilerInputs.append(String.format(" %s:%d:%x", family.baseName, family.numStops, family.baseStopCode));
+            for (PerfTrap trap : family.traps) {
+                profilerInputs.append((trap.reachability != null) ? trap.reachability.name().charAt(0) : '?');
             }
         }
+        profilerInputs.append(String.format(" %s %s", packageName, GenerationManifest.formatConstants(constants)));
+        manifest.profilerHash = GenerationManifest.hash(profilerInputs.toString());
+
+        if (manifest.profilerHash.equals(previous.profilerHash) && new File(String.format("%s/PMC.java", outputDirApplet)).exists()
+                && new File(String.format("%s/src/jcprofiler/PerfTests.java", outputDirClient)).exists()) {
+            System.out.println("INFO: Traps, templates and options unchanged since last generation, profiler templates are not regenerated.");
+            manifest.save(manifestPath);
+            return;
+        }
         
         //
         // Generate helper files for card-side profiler application 
         //
-        String templateAppletDir = String.format("%s/templates/template_profiler_applet/", baseDirectory);
         copy(new File(templateAppletDir), new File(outputDirApplet));
-        personalizeTemplatesApplet(filesWithTraps, outputDirApplet); //=> PM, PMC 
+        personalizeTemplatesApplet(trapFamiliesFound, outputDirApplet); //=> PM, PMC 
 
         //
         // Generate helper files for client-side profiler application 
         //
-        String templateClientDir = String.format("%s/templates/template_profiler_client/", baseDirectory);
         copy(new File(templateClientDir), new File(outputDirClient)); 
         ArrayList<String> filesToCopy = new ArrayList<>();
         filesToCopy.add(String.format("%s/PMC.java", outputDirApplet));
-        personalizeTemplatesClient(filesWithTraps, outputDirClient, filesToCopy); // JCProfiler_client
+        personalizeTemplatesClient(trapFamiliesFound, outputDirClient, filesToCopy); // JCProfiler_client
         
         
         // Update PM and PMC package declaration
         CompilationUnit pm = parseFile(String.format("%s/PM.java", outputDirApplet));
         CompilationUnit pmc = parseFile(String.format("%s/PMC.java", outputDirApplet));
-        changePackageDeclaration(cu, pm);
+        changePackageDeclaration(packageName, pm);
         writeChanges(String.format("%s/PM.java", outputDirApplet), pm);
-        changePackageDeclaration(cu, pmc);
+        changePackageDeclaration(packageName, pmc);
         writeChanges(String.format("%s/PMC.java", outputDirApplet), pmc);
         
         // Update PerfTests
         CompilationUnit pt = parseFile(String.format("%s/src/jcprofiler/PerfTests.java", outputDirClient));
-        changeApduTrigger(pt);
+        changeApduTrigger(pt, constants);
+        if (baseCfg.triggerIns != null) {
+            setSingleApduArming(pt, baseCfg.triggerIns);
+        }
         writeChanges(String.format("%s/src/jcprofiler/PerfTests.java", outputDirClient), pt);
+        manifest.save(manifestPath);
         
         
         System.out.println("\n\n#########################################");
@@ -238,11 +393,17 @@ public class PerfCodeGenerator {
         System.out.println("1. Copy applet files (together with PMC.java and PM.java) back to your applet structure.");        
         System.out.println("2. Open PM.java and PMC.java and update package to your applet's package name.");
         System.out.println("3. Open PM.java and *move* specified part of code (INS_PERF_SETSTOP) at the end of file to process() method of your applet.");
+        if (baseCfg.triggerIns != null) {
+            System.out.println("   Single-APDU arming is enabled: make sure PM.arm(apdubuf, INS_PERF_TRIGGER) is called before the switch on INS.");
+        }
         System.out.println("4. Convert your applet and upload to target card as usual.");      
         System.out.println();
         System.out.println(String.format("Directory '%s' contains client-side code of the profiler.\nNow you need to:", outputDirClient));
         System.out.println("1. Open PerfTests.java and correct APPLET_CLA, APPLET_AID according to your applet.");
         System.out.println("2. Open PerfTests.java and set proper apdu APDU_TRIGGER which will trigger (let execute) the method you like to profile (method which now have 'PM.check(PMC.TRAP_' inserted).");
+        if (trapFamiliesFound.size() > 1) {
+            System.out.println(String.format("   %d trap families are profiled in one session, set trigger apdu of every family in its PerfTrapFamily (APDU_TRIGGER is used by default).", trapFamiliesFound.size()));
+        }
         System.out.println("3. (Optional) Set CARD_NAME to sensible string. If APDU_CLEANUP is set, this apdu is send to card after every measurement command (for 'cleaning').");
         System.out.println("4. Compile and run JCProfiler_client. Measurement apdu commands are send to card and resulting measurements are inserted as comment directly behind the correspoding performance trap.");
         System.out.println(String.format("5. Inspect console results and modified files which are copied into directory '%s/perf/unique_experiment_id'.", outputDirApplet));
@@ -251,6 +412,450 @@ public class PerfCodeGenerator {
         
     }
     
+    /**
+     * Processes all files from input directory on pool of numJobs workers.
+     * @return results ordered by file name
+     */
+    List<InputFileResult> processInputFiles(PerfCodeConfig baseCfg, String baseAppletFilesDir, String outputDirApplet, GenerationManifest cache, AutoTrapPlan autoTraps) throws IOException {
+        ArrayList<InputFileResult> results = new ArrayList<>();
+        File dir = new File(baseAppletFilesDir);
+        String[] filesArray = dir.list();
+        if ((filesArray == null) || (dir.isDirectory() == false)) {
+            return results;
+        }
+        Arrays.sort(filesArray);
+
+        ArrayList<Callable<InputFileResult>> tasks = new ArrayList<>();
+        for (String fileName : filesArray) {
+            if (!new File(baseAppletFilesDir + fileName).isDirectory()) {
+                tasks.add(() -> processInputFile(baseCfg, baseAppletFilesDir, outputDirApplet, fileName, cache, autoTraps));
+            }
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, numJobs));
+        try {
+            for (Future<InputFileResult> future : pool.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+
+            // traps of every family are numbered through all files in order of file names, so traps
+            // of file are shifted by number of traps of same family in all preceding files
+            HashMap<String, Integer> counts = new HashMap<>();
+            tasks.clear();
+            for (InputFileResult result : results) {
+                if (result.sourceFile == null) {
+                    continue;
+                }
+                HashMap<String, Integer> offsets = new HashMap<>(counts);
+                for (PerfTrap trap : result.sourceFile.traps) {
+                    counts.merge(trap.family, 1, Integer::sum);
+                }
+                if (result.bWritten && !isNumberedFrom(result.sourceFile, offsets)) {
+                    // cached file numbered from different offsets (e.g., traps added into preceding file), parse again
+                    System.out.println(String.format("INFO: Traps in files preceding '%s' changed, file is renumbered", result.filePath));
+                    result.bWritten = false;
+                    result.sourceFile = null;
+                }
+                if (!result.bWritten) {
+                    tasks.add(() -> writeInputFile(baseCfg, outputDirApplet, result, offsets, autoTraps));
+                }
+            }
+            for (Future<InputFileResult> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Processing of input files interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        return results;
+    }
+
+    /**
+     * Parses single input file once, numbers its traps from 1 (in every family), inserts stop constant
+     * and case statement. Input file is left unchanged (copy is stored as .orig), result is written
+     * by writeInputFile once numbering through all files is known.
+     * If content of file is unchanged since last generation, metadata are taken from cache instead.
+     * Uses no state shared with other files (cache is only read).
+     */
+    InputFileResult processInputFile(PerfCodeConfig baseCfg, String baseAppletFilesDir, String outputDirApplet, String fileName, GenerationManifest cache, AutoTrapPlan autoTraps) throws IOException {
+        InputFileResult result = new InputFileResult();
+        result.fileName = fileName;
+        result.filePath = baseAppletFilesDir + fileName;
+        File inputFile = new File(result.filePath);
+        System.out.println(String.format("INFO: Processing file '%s'", result.filePath));
+
+        // Copy file from templates to target
+        String targetFilePathOrig = outputDirApplet + fileName + ".orig";
+        String targetFilePath = outputDirApplet + fileName;
+        if (fileName.endsWith(".java")) {
+            result.hash = GenerationManifest.hash(Files.readAllBytes(inputFile.toPath()));
+            PerfSourceFile cached = cache.getCached(fileName, result.hash);
+            if (cached != null && new File(targetFilePath).exists()) {
+                System.out.println("  Unchanged since last generation, cached traps used");
+                result.sourceFile = cached;
+                result.bWritten = true;
+                return result;
+            }
+        }
+        Files.copy(inputFile.toPath(), (new File(targetFilePathOrig)).toPath(), REPLACE_EXISTING);
+        if (!fileName.endsWith(".java")) {
+            Files.copy(inputFile.toPath(), (new File(targetFilePath)).toPath(), REPLACE_EXISTING);
+            return result;
+        }
+
+        result.sourceFile = parseInputFile(result.filePath, fileName, baseCfg, autoTraps);
+        return result;
+    }
+
+    private PerfSourceFile parseInputFile(String filePath, String fileName, PerfCodeConfig baseCfg, AutoTrapPlan autoTraps) throws IOException {
+        PerfSourceFile sourceFile = new PerfSourceFile(fileName);
+        sourceFile.cu = (autoTraps != null) ? autoTraps.units.remove(fileName) : null;
+        if (sourceFile.cu != null) {
+            for (Map.Entry<MethodNode, String> method : autoTraps.methods.entrySet()) {
+                if (method.getKey().fileName.equals(fileName)) {
+                    insertAutoTraps(method.getKey().declaration, method.getValue(), autoTrapDensity, autoTraps.graph);
+                }
+            }
+            for (Map.Entry<MethodNode, Refinement> method : autoTraps.refinedMethods.entrySet()) {
+                if (method.getKey().fileName.equals(fileName)) {
+                    insertTrapsBefore(method.getKey().declaration, method.getValue().family, method.getValue().statements);
+                }
+            }
+        } else {
+            sourceFile.cu = parseFile(filePath);
+        }
+        transformSourceFile(sourceFile, (autoTraps != null) ? autoTraps.trapFamilies : trapFamilies, baseCfg.triggerIns);
+        return sourceFile;
+    }
+
+    /**
+     * Parses all input files and selects methods for automatic trap insertion according to autoTrapMethods
+     * and refinements.
+     * Every selected method gets own trap family named by method (prefixed by class if name is ambiguous).
+     * process() is never instrumented as it also dispatches INS_PERF_SETSTOP, methods with trap templates
+     * are profiled by their templates only.
+     */
+    AutoTrapPlan prepareAutoTraps(String baseAppletFilesDir) throws IOException {
+        AutoTrapPlan plan = new AutoTrapPlan();
+        TreeMap<String, CompilationUnit> units = new TreeMap<>();
+        StringBuilder hashes = new StringBuilder();
+        String[] filesArray = new File(baseAppletFilesDir).list();
+        if (filesArray != null) {
+            Arrays.sort(filesArray);
+            for (String fileName : filesArray) {
+                File file = new File(baseAppletFilesDir + fileName);
+                if (fileName.endsWith(".java") && !file.isDirectory()) {
+                    hashes.append(GenerationManifest.hash(Files.readAllBytes(file.toPath())));
+                    units.put(fileName, parseFile(file.getPath()));
+                }
+            }
+        }
+        plan.units.putAll(units);
+        plan.inputsHash = GenerationManifest.hash(hashes.toString());
+        plan.graph = new CallGraph(units);
+
+        LinkedHashSet<MethodNode> selected = new LinkedHashSet<>();
+        for (String name : (autoTrapMethods != null) ? autoTrapMethods.split(",") : new String[0]) {
+            if (name.trim().equals("all")) {
+                selected.addAll(plan.graph.getMethods());
+            } else if (name.trim().equals("reachable")) {
+                selected.addAll(plan.graph.getReachable(plan.graph.getMethods("process")));
+            } else {
+                List<MethodNode> methods = plan.graph.getMethods(name.trim());
+                if (methods.isEmpty()) {
+                    System.out.println(String.format("  WARNING: method '%s' selected for automatic traps not found", name.trim()));
+                }
+                selected.addAll(methods);
+            }
+        }
+        HashMap<String, String> classesByName = new HashMap<>();
+        HashSet<String> ambiguousNames = new HashSet<>();
+        selected.removeIf(m -> m.name.equals("process") || m.className.equals("PM") || m.className.equals("PMC"));
+        selected.removeIf(m -> m.declaration.findFirst(MethodCallExpr.class, call -> getTrapTemplateFamily(call) != null).isPresent()); // profiled by its templates
+        for (MethodNode method : selected) {
+            if (!method.className.equals(classesByName.getOrDefault(method.name, method.className))) {
+                ambiguousNames.add(method.name);
+            }
+            classesByName.put(method.name, method.className);
+        }
+        for (MethodNode method : selected) {
+            String family = ambiguousNames.contains(method.name) ? method.getQualifiedName() : method.name;
+            plan.methods.put(method, family.replaceAll("\\W", "_").toUpperCase(Locale.ROOT));
+        }
+        for (Map.Entry<String, Refinement> refinement : refinements.entrySet()) {
+            MethodNode method = plan.graph.getMethodBySignature(refinement.getKey());
+            if (method != null) {
+                plan.refinedMethods.put(method, refinement.getValue());
+            } else {
+                System.out.println(String.format("  WARNING: method '%s' selected for finer traps not found", refinement.getKey()));
+            }
+        }
+        if (trapFamilies != null) {
+            plan.trapFamilies = new HashSet<>(trapFamilies);
+            plan.trapFamilies.addAll(plan.methods.values());
+            for (Refinement refinement : refinements.values()) {
+                plan.trapFamilies.add(refinement.family);
+            }
+        }
+        if (autoTrapMethods != null) {
+            System.out.println(String.format("INFO: %d methods selected for automatic traps (%s, density %s)", plan.methods.size(), autoTrapMethods, autoTrapDensity.name().toLowerCase(Locale.ROOT)));
+        }
+        if (!refinements.isEmpty()) {
+            System.out.println(String.format("INFO: Finer traps inserted into %d methods (%s)", plan.refinedMethods.size(), String.join(", ", refinements.keySet())));
+        }
+        return plan;
+    }
+
+    /**
+     * Checks reachability of traps from handler of trigger command in transformed files, so the client
+     * does not spend card time on traps which cannot be reached (see TrapReachability). Analysis spans
+     * all files (calls between classes), so it is repeated only if any transformed file may differ from
+     * last generation (options, content of input files or trapIDs changed), otherwise result is taken from manifest.
+     */
+    static void analyzeReachability(String outputDirApplet, List<PerfCodeConfig> families, Byte triggerIns, GenerationManifest manifest, GenerationManifest previous) throws IOException {
+        StringBuilder inputs = new StringBuilder(manifest.optionsHash + manifest.filesHash());
+        for (PerfCodeConfig family : families) {
+            for (PerfTrap trap : family.traps) {
+                inputs.append(' ').append(trap.name);
+            }
+        }
+        manifest.reachabilityHash = GenerationManifest.hash(inputs.toString());
+        if (manifest.reachabilityHash.equals(previous.reachabilityHash)) {
+            manifest.reachabilityHandler = previous.reachabilityHandler;
+            manifest.reachability.putAll(previous.reachability);
+        } else {
+            TrapReachability analysis = new TrapReachability(parseAppletFiles(outputDirApplet), triggerIns);
+            manifest.reachabilityHandler = analysis.getHandlerDescription();
+            if (manifest.reachabilityHandler != null) {
+                manifest.reachability.putAll(analysis.analyze());
+            }
+        }
+        if (manifest.reachabilityHandler == null) {
+            System.out.println(String.format("INFO: Handler of trigger command%s not found in process(), reachability of traps not analysed",
+                    (triggerIns != null) ? String.format(" (INS 0x%02x)", triggerIns) : ""));
+            return;
+        }
+        for (PerfCodeConfig family : families) {
+            int[] counts = new int[Reachability.values().length];
+            for (PerfTrap trap : family.traps) {
+                trap.reachability = manifest.reachability.getOrDefault(trap.name, Reachability.REACHABLE);
+                counts[trap.reachability.ordinal()]++;
+            }
+            System.out.println(String.format("INFO: Trap family %s from %s: %d reachable, %d conditional, %d after early return, %d dead",
+                    family.baseName, manifest.reachabilityHandler, counts[Reachability.REACHABLE.ordinal()], counts[Reachability.CONDITIONAL.ordinal()],
+                    counts[Reachability.AFTER_RETURN.ordinal()], counts[Reachability.DEAD.ordinal()]));
+        }
+    }
+
+    /**
+     * Reads results of previous profiling session, stores call tree of profiled methods into target
+     * and adds callees of the slowest segments to methods instrumented by automatic traps
+     * (together with methods instrumented automatically in previous generation).
+     * Must be called before generatePersonalizedProfiler, as results refer to trapIDs of previous generation.
+     * @param resultsFile TRAP_RAW_*.csv of session measured with profiler generated into baseDirectory
+     * @param numSegments number of the slowest segments to drill into
+     */
+    void drillDown(String resultsFile, int numSegments, String baseDirectory) throws IOException {
+        DrillDown drillDown = new DrillDown(String.format("%s/target/profiler_applet/", baseDirectory));
+        drillDown.loadResults(resultsFile);
+        String callTreeFile = String.format("%s/target/%s", baseDirectory, DrillDown.CALL_TREE_FILE);
+        drillDown.saveCallTree(callTreeFile);
+        System.out.print(drillDown.formatCallTree());
+        System.out.println(String.format("INFO: Call tree stored into '%s'", callTreeFile));
+
+        List<String> callees = drillDown.selectCallees(numSegments);
+        if (callees.isEmpty()) {
+            System.out.println("INFO: No applet methods called from the slowest segments, traps are not extended");
+        }
+        // methods instrumented automatically in previous generation keep their traps
+        LinkedHashSet<String> selection = new LinkedHashSet<>();
+        if (autoTrapMethods != null) {
+            selection.add(autoTrapMethods);
+        }
+        selection.addAll(drillDown.getAutoTrappedMethods());
+        selection.addAll(callees);
+        if (!selection.isEmpty()) {
+            autoTrapMethods = String.join(",", selection);
+        }
+    }
+
+    /**
+     * Shifts numbers of traps of single file by given offsets and writes result into target.
+     * File is parsed again if its (cached) traps were numbered from different offsets.
+     */
+    InputFileResult writeInputFile(PerfCodeConfig baseCfg, String outputDirApplet, InputFileResult result, HashMap<String, Integer> offsets, AutoTrapPlan autoTraps) throws IOException {
+        if (result.sourceFile == null) {
+            result.sourceFile = parseInputFile(result.filePath, result.fileName, baseCfg, autoTraps);
+        }
+        renumberTraps(result.sourceFile, offsets);
+        writeChanges(outputDirApplet + result.fileName, result.sourceFile);
+        result.bWritten = true;
+
+        if (result.sourceFile.traps.isEmpty()) {
+            System.out.println(String.format("  No template performance traps found in file '%s'", result.filePath));
+        }
+        else {
+            System.out.println(String.format("  OK: Total '%d' traps found in file '%s'", result.sourceFile.traps.size(), result.filePath));
+        }
+        return result;
+    }
+
+    /**
+     * @return true if traps of every family in file are numbered consecutively from its offset + 1
+     */
+    static boolean isNumberedFrom(PerfSourceFile sourceFile, HashMap<String, Integer> offsets) {
+        HashMap<String, Integer> expected = new HashMap<>(offsets);
+        for (PerfTrap trap : sourceFile.traps) {
+            if (trap.index != expected.merge(trap.family, 1, Integer::sum)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Assigns trapIDs to every trap family. TrapID is hierarchical: method field (SW1), statement
+     * block (high nibble of SW2) and statement within block (low nibble of SW2). Every family gets
+     * own method field (first family the one of startConst, following ones below), traps of one
+     * statement block of source code share block field. Large methods continue in next free method
+     * field. Method fields forming reserved status words are skipped, see isReservedMethodField.
+     *
+     * @param families trap families with numStops (and optionally traps) set, trapIDs and baseStopCode are filled
+     * @param startConst trapID whose method field is used for first family
+     */
+    static void allocateTrapIDs(List<PerfCodeConfig> families, int startConst) throws IOException {
+        ArrayList<Integer> methodFields = new ArrayList<>();
+        for (int i = 0; i < 0x100; i++) {
+            int methodField = ((startConst >> 8) - i) & 0xff;
+            if (!isReservedMethodField(methodField)) {
+                methodFields.add(methodField);
+            }
+        }
+        int nextMethodField = 0;
+        for (PerfCodeConfig family : families) {
+            if (nextMethodField == methodFields.size()) {
+                throw new IOException(String.format("Not enough trapIDs for trap family %s (%d traps)", family.baseName, family.numStops));
+            }
+            int methodField = methodFields.get(nextMethodField++);
+            int numMethodFields = 1;
+            int block = 0;
+            int statement = 0; // statement 0 of block 0 is TRAP_x_COMPLETE
+            family.trapIDs = new int[family.numStops + 1];
+            family.trapIDs[0] = (methodField << 8);
+            for (int i = 1; i <= family.numStops; i++) {
+                boolean bBlockStart = (i <= family.traps.size()) && family.traps.get(i - 1).bBlockStart;
+                if ((bBlockStart && statement > 0) || statement == TRAP_ID_STATEMENTS - 1) {
+                    block++;
+                    statement = 0;
+                }
+                if (block == TRAP_ID_BLOCKS) {
+                    if (nextMethodField == methodFields.size()) {
+                        throw new IOException(String.format("Not enough trapIDs for trap family %s (%d traps)", family.baseName, family.numStops));
+                    }
+                    methodField = methodFields.get(nextMethodField++);
+                    numMethodFields++;
+                    block = 0;
+                }
+                statement++;
+                family.trapIDs[i] = (methodField << 8) | (block << 4) | statement;
+            }
+            family.baseStopCode = family.trapIDs[0];
+            System.out.println(String.format("INFO: Trap family %s (%s()): %d traps, trapIDs 0x%02xxx%s", family.baseName, family.methodName, family.numStops,
+                    family.trapIDs[0] >> 8, (numMethodFields > 1) ? String.format(" (continued in %d more method fields)", numMethodFields - 1) : ""));
+        }
+    }
+
+    /**
+     * Writes trap source map: position of every numbered trap in generated applet files, one line per trap
+     * (trapID, name, file, line, column, enclosing method and statement block given by trapID >> 4).
+     * Applet directory is stored relative to directory of the map.
+     */
+    static void saveTrapSourceMap(List<PerfCodeConfig> families, String outputDirApplet, String path) throws IOException {
+        Path mapDir = new File(path).getAbsoluteFile().getParentFile().toPath();
+        String appletDir = mapDir.relativize(new File(outputDirApplet).getAbsoluteFile().toPath()).toString().replace('\\', '/');
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(path))) {
+            bw.write("# JCProfiler trap source map: trapID name file line column method block\n");
+            bw.write(String.format("applet %s/\n", appletDir.isEmpty() ? "." : appletDir));
+            for (PerfCodeConfig family : families) {
+                for (int i = 0; i < family.traps.size() && i < family.numStops; i++) {
+                    PerfTrap trap = family.traps.get(i);
+                    if (trap.line > 0) {
+                        int trapID = family.trapIDs[i + 1];
+                        bw.write(String.format("%04x %s %s %d %d %s %03x\n", trapID, trap.name, trap.fileName, trap.line, trap.column,
+                                (trap.methodName != null) ? trap.methodName : "-", trapID >> 4));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if method field (SW1) of trapID forms ISO7816 status word (61xx-6Fxx, 90xx-9Fxx)
+     * or is used by PMC: PERF_START (00xx), TRAP_CALIB_x (7Fxx) and TRAP_UNDEFINED (FFxx)
+     */
+    static boolean isReservedMethodField(int methodField) {
+        return (methodField >= 0x60 && methodField <= 0x6f) || (methodField >= 0x90 && methodField <= 0x9f)
+                || methodField == 0x00 || methodField == 0x7f || methodField == 0xff;
+    }
+
+    /**
+     * Watches input files and templates and regenerates profiler after every (debounced) burst of changes.
+     * Parser stays loaded and GenerationManifest limits regeneration to changed files. Never returns unless interrupted.
+     */
+    void watch(PerfCodeConfig baseCfg, String baseDirectory) throws IOException, InterruptedException {
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            for (String dirName : new String[]{"input_applet_files", "template_profiler_applet", "template_profiler_client"}) {
+                registerWatch(watcher, new File(String.format("%s/templates/%s", baseDirectory, dirName)));
+            }
+            System.out.println(String.format("INFO: Watching '%s/templates/' for changes (Ctrl+C to stop)...", baseDirectory));
+
+            while (true) {
+                WatchKey key = watcher.take();
+                // debounce: wait until no further change arrives within quiet period
+                ArrayList<WatchKey> keys = new ArrayList<>();
+                while (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == ENTRY_CREATE) {
+                            File created = ((Path) key.watchable()).resolve((Path) event.context()).toFile();
+                            registerWatch(watcher, created); // newly created subdirectories are watched as well
+                        }
+                    }
+                    keys.add(key);
+                    key = watcher.poll(WATCH_DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+                }
+                for (WatchKey changedKey : keys) {
+                    changedKey.reset();
+                }
+
+                long start = System.nanoTime();
+                try {
+                    generatePersonalizedProfiler(baseCfg, baseDirectory);
+                    System.out.println(String.format("INFO: Regenerated in %d ms, watching for changes...", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+                } catch (IOException | RuntimeException e) {
+                    // e.g., file saved in the middle of edit and not parsable, wait for next change
+                    System.out.println("  Failed to regenerate profiler: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void registerWatch(WatchService watcher, File dir) throws IOException {
+        if (!dir.isDirectory()) {
+            return;
+        }
+        dir.toPath().register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        for (File file : dir.listFiles()) {
+            registerWatch(watcher, file);
+        }
+    }
+
     void personalizeTemplatesApplet(ArrayList<PerfCodeConfig> filesWithTraps, String outputDirApplet) throws IOException {
         //
         // Personalize PMC.java
@@ -258,7 +863,7 @@ public class PerfCodeGenerator {
         String PLACEHOLDER_PMC_CONSTANTS = "//### PLACEHOLDER PMC CONSTANTS";
         String result = "";
         for (PerfCodeConfig item : filesWithTraps) {
-            result += generatePerfTrapsStrings_TrapIDs(item.baseName, item.numStops, item.baseStopCode);
+            result += generatePerfTrapsStrings_TrapIDs(item);
         }
         String inputFilePath = String.format("%sPMC.java", outputDirApplet);
         System.out.println(String.format("INFO: Transforming file '%s' for trapID constants.", inputFilePath));
@@ -280,7 +885,7 @@ public class PerfCodeGenerator {
         String resultPerfTrapInit = "";
         String resultPerfTrapMappings = "";
         for (PerfCodeConfig item : filesWithTraps) {
-            resultPerfTrapInit += generatePerfTrapsStrings_InitList(item.baseName, item.testName, item.numStops);
+            resultPerfTrapInit += generatePerfTrapsStrings_InitList(item.baseName, item.testName, item.numStops, getReachability(item));
             resultPerfTrapMappings += generatePerfTrapsStrings_Mappings(item.baseName, item.numStops);
         }
         String inputFilePath = String.format("%ssrc/jcprofiler/PerfTests.java", outputDirClient);
@@ -303,57 +908,6 @@ public class PerfCodeGenerator {
         }
     }
 
-    boolean enumeratePerfTrapsFile(PerfCodeConfig cfg, String inputFilePath, String outputFilePath) {
-        boolean bSomeTrapFound = false;
-        System.out.println(String.format("INFO: Processing file '%s'", inputFilePath));
-        
-        try {
-            BufferedReader br = new BufferedReader(new FileReader(inputFilePath));
-            String filePathTransform = outputFilePath;
-            FileOutputStream fileOut = new FileOutputStream(filePathTransform);
-            String strLine;
-            String perfTrapLineTemplate = String.format("PM.check(PMC.TRAP_%s_0);", cfg.insBase);
-            String perfTrapCounterTemplate = String.format("%s_0", cfg.insBase);
-            int perfTrapCount = 1;
-
-            // For every line of program insert generic performance trap
-            while ((strLine = br.readLine()) != null) {
-                if (strLine.contains(perfTrapLineTemplate)) { 
-                    bSomeTrapFound = true; // We found at least one trap!
-
-                    // Replace by trap with counter 
-                    String perfTrapCounter = String.format("%s_%d", cfg.insBase, perfTrapCount);
-                    perfTrapCount++;
-                    if (perfTrapCount > MAX_TRAPS_PER_METHOD) {
-                        System.out.println("  Too much traps templates found - try to decrease below " + MAX_TRAPS_PER_METHOD);
-                    }
-                    
-                    strLine = strLine.replaceFirst(perfTrapCounterTemplate, perfTrapCounter);
-                    
-                }
-                // Insert original or modified final line 
-                strLine += "\n";
-                fileOut.write(strLine.getBytes());
-            }
-            
-            br.close();
-            fileOut.close();
-            
-            if (!bSomeTrapFound) {
-                System.out.println(String.format("  No template performance traps found in file '%s'", inputFilePath));
-            }
-            else {
-                System.out.println(String.format("  OK: Total '%d' traps found in file '%s'", perfTrapCount, inputFilePath));
-            }
-            
-            cfg.numStops = perfTrapCount - 1;
-        } catch (Exception e) {
-            System.out.println(String.format("Failed to transform file %s ", inputFilePath) + e);
-        }
-        
-        return bSomeTrapFound;
-    }
-    
     boolean replaceStringInCopiedFile(String targetFilePath, String stringToFind, String stringReplace, boolean bLeaveFind) {
         boolean bReplacePerformed = false;
         try {
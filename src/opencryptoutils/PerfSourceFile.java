@@ -0,0 +1,23 @@
+package opencryptoutils;
+
+import com.github.javaparser.ast.CompilationUnit;
+import java.util.ArrayList;
+
+/**
+ * Applet source file processed by generator. Filled by single pass of Parser.transformSourceFile
+ * (numbered traps, constants, inserted INS_PERF_SETSTOP case) and Parser.writeChanges (trap positions)
+ * or loaded from GenerationManifest if file was not changed since last generation.
+ */
+public class PerfSourceFile {
+    public final String fileName;
+    public CompilationUnit cu = null;                       // null if metadata are taken from GenerationManifest
+    public String packageName = null;                       // package declared in file, null if default package
+    public ArrayList<Byte> constants = new ArrayList<>();   // byte constants of file (used for apdu trigger)
+    public ArrayList<PerfTrap> traps = new ArrayList<>();   // numbered traps in order of occurrence
+    public boolean bSwitchCaseInserted = false;             // true if INS_PERF_SETSTOP case was inserted into process()
+    public boolean bArmingInserted = false;                 // true if PM.arm() was inserted into process()
+
+    PerfSourceFile(String fileName) {
+        this.fileName = fileName;
+    }
+}
@@ -0,0 +1,43 @@
+package opencryptoutils;
+
+import com.github.javaparser.ast.expr.FieldAccessExpr;
+import opencryptoutils.TrapReachability.Reachability;
+
+/**
+ * Metadata of single numbered performance trap found by generator.
+ */
+public class PerfTrap {
+    public String name;             // trap constant name, e.g., TRAP_EC_GEN_1
+    public String family;           // base name of trap family (profiled method), e.g., EC_GEN
+    public int index;               // number of trap within its family (1-based)
+    public String fileName;         // generated applet file with the trap
+    public String methodName;       // enclosing method (or constructor)
+    public int line = 0;            // position of PM.check() in generated file (1-based), 0 if not known
+    public int column = 0;
+    public boolean bBlockStart = true; // false if previous trap of same family is in the same statement block (see PerfCodeGenerator.allocateTrapIDs)
+    public Reachability reachability = null; // reachability from trigger command (see TrapReachability), null if not analysed
+    FieldAccessExpr trapArg = null; // PMC.TRAP_x argument in parsed file, null if taken from manifest
+
+    PerfTrap(String family, int index, String fileName, String methodName) {
+        this.family = family;
+        this.fileName = fileName;
+        this.methodName = methodName;
+        setIndex(index);
+    }
+
+    /**
+     * @param name trap constant name in form TRAP_family_index
+     */
+    static PerfTrap fromName(String name, String fileName, String methodName) {
+        int separator = name.lastIndexOf('_');
+        return new PerfTrap(name.substring("TRAP_".length(), separator), Integer.parseInt(name.substring(separator + 1)), fileName, methodName);
+    }
+
+    void setIndex(int index) {
+        this.index = index;
+        this.name = String.format("TRAP_%s_%d", family, index);
+        if (trapArg != null) {
+            trapArg.setName(name);
+        }
+    }
+}
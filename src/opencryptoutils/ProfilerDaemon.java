@@ -0,0 +1,283 @@
+package opencryptoutils;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long-running profiler process executing JCProfiler jobs (generation -st or parser -pt actions) on bounded
+ * pool of workers. Every job is one JCProfiler command line, its arguments are separated by whitespace and may be
+ * enclosed in double or single quotes (e.g. -bd "My Applets/demo"), there is no escape character.
+ * Jobs are read either from standard input (one job per line, works also with named pipe redirected to stdin)
+ * or from spool directory:
+ *   NAME.job     - job file (one job per line, '#' comments) created by client
+ *   NAME.running - job file claimed by daemon
+ *   NAME.done / NAME.failed - processed job file, output of its jobs is in NAME.log
+ * Parsed files are shared between jobs via AstCache, output of every job is collected and printed at once.
+ * Jobs with the same base directory (-bd) write into the same target/ tree and manifest, so they are executed
+ * one after another, jobs with different base directories run concurrently.
+ */
+public class ProfilerDaemon {
+    public static final String QUIT_COMMAND = "quit";
+    static final long SPOOL_POLL_MS = 200;
+    static final int QUEUE_CAPACITY_PER_WORKER = 4;
+
+    private final ThreadPoolExecutor pool;
+    private final AstCache astCache = new AstCache(AstCache.DEFAULT_CAPACITY);
+    private final AtomicInteger jobCounter = new AtomicInteger();
+    private final ConcurrentHashMap<String, Object> baseDirLocks = new ConcurrentHashMap<>(); // canonical base directory -> lock of its jobs
+    private final PrintStream console;
+    private final PrintStream consoleErr;
+    private final JobOutputStream jobOutput;
+
+    /**
+     * Output stream writing into buffer of job executed by current thread (inherited by threads started by job),
+     * or to console if current thread does not execute any job.
+     */
+    static class JobOutputStream extends OutputStream {
+        private final PrintStream console;
+        private final InheritableThreadLocal<ByteArrayOutputStream> buffer = new InheritableThreadLocal<>();
+
+        JobOutputStream(PrintStream console) {
+            this.console = console;
+        }
+
+        private OutputStream target() {
+            ByteArrayOutputStream jobBuffer = buffer.get();
+            return (jobBuffer != null) ? jobBuffer : console;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            OutputStream out = target();
+            synchronized (out) {
+                out.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            OutputStream out = target();
+            synchronized (out) {
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target().flush();
+        }
+    }
+
+    public ProfilerDaemon(int numWorkers) {
+        int workers = Math.max(1, numWorkers);
+        // bounded queue, submitting thread waits (runs the job itself) if all workers are busy and queue is full
+        pool = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(workers * QUEUE_CAPACITY_PER_WORKER), new ThreadPoolExecutor.CallerRunsPolicy());
+        console = System.out;
+        consoleErr = System.err;
+        jobOutput = new JobOutputStream(console);
+    }
+
+    /**
+     * Executes jobs read from standard input until end of input or 'quit' command.
+     */
+    public void runStdin() throws IOException, InterruptedException {
+        start();
+        console.println(String.format("INFO: JCProfiler daemon ready (%d workers), reading jobs from standard input ('%s' to stop)", pool.getMaximumPoolSize(), QUIT_COMMAND));
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(System.in))) {
+            String strLine;
+            while ((strLine = br.readLine()) != null) {
+                String job = strLine.trim();
+                if (job.equals(QUIT_COMMAND)) {
+                    break;
+                }
+                if (!job.isEmpty() && !job.startsWith("#")) {
+                    pool.execute(() -> {
+                        ByteArrayOutputStream output = new ByteArrayOutputStream();
+                        runJob(job, output);
+                        synchronized (console) {
+                            console.print(output.toString());
+                            console.flush();
+                        }
+                    });
+                }
+            }
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * Polls spool directory for job files until file named 'quit' is created in it.
+     */
+    public void runSpool(File spoolDir) throws IOException, InterruptedException {
+        if (!spoolDir.isDirectory() && !spoolDir.mkdirs()) {
+            throw new IOException(String.format("Spool directory '%s' can't be created", spoolDir));
+        }
+        start();
+        console.println(String.format("INFO: JCProfiler daemon ready (%d workers), polling '%s' for *.job files (create file '%s' to stop)", pool.getMaximumPoolSize(), spoolDir, QUIT_COMMAND));
+        try {
+            File quitFile = new File(spoolDir, QUIT_COMMAND);
+            while (!quitFile.exists()) {
+                String[] names = spoolDir.list((dir, name) -> name.endsWith(".job"));
+                if (names != null) {
+                    Arrays.sort(names);
+                    for (String name : names) {
+                        String baseName = name.substring(0, name.length() - ".job".length());
+                        File running = new File(spoolDir, baseName + ".running");
+                        if (new File(spoolDir, name).renameTo(running)) { // claim job file
+                            pool.execute(() -> runSpoolFile(spoolDir, baseName, running));
+                        }
+                    }
+                }
+                Thread.sleep(SPOOL_POLL_MS);
+            }
+            Files.delete(quitFile.toPath());
+        } finally {
+            stop();
+        }
+    }
+
+    private void runSpoolFile(File spoolDir, String baseName, File running) {
+        boolean bSuccess = true;
+        try (FileOutputStream log = new FileOutputStream(new File(spoolDir, baseName + ".log"))) {
+            for (String line : Files.readAllLines(running.toPath())) {
+                String job = line.trim();
+                if (!job.isEmpty() && !job.startsWith("#")) {
+                    ByteArrayOutputStream output = new ByteArrayOutputStream();
+                    bSuccess &= runJob(job, output);
+                    output.writeTo(log);
+                }
+            }
+        } catch (IOException e) {
+            bSuccess = false;
+            synchronized (console) {
+                console.println(String.format("  Failed to process job file '%s': %s", running, e));
+            }
+        }
+        running.renameTo(new File(spoolDir, baseName + (bSuccess ? ".done" : ".failed")));
+        synchronized (console) {
+            console.println(String.format("INFO: Job file '%s' %s", baseName, bSuccess ? "done" : "failed"));
+        }
+    }
+
+    /**
+     * Executes single job (JCProfiler command line), output of job is stored into given buffer.
+     * @return true if job finished without error
+     */
+    boolean runJob(String job, ByteArrayOutputStream output) {
+        int jobID = jobCounter.incrementAndGet();
+        jobOutput.buffer.set(output);
+        long start = System.nanoTime();
+        boolean bSuccess = false;
+        try {
+            System.out.println(String.format("### job %d: %s", jobID, job));
+            String[] args = splitArgs(job);
+            List<String> argList = Arrays.asList(args);
+            if (argList.contains("-w") || argList.contains("--watch") || argList.contains("-d") || argList.contains("--daemon")) {
+                System.out.println("  Watch and daemon mode can't be used inside daemon job");
+            } else {
+                synchronized (baseDirLocks.computeIfAbsent(getBaseDir(args), dir -> new Object())) {
+                    bSuccess = new JCProfiler().run(args);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.out.println("  Job failed: " + e);
+        } finally {
+            System.out.println(String.format("### job %d %s in %d ms (%s)", jobID, bSuccess ? "finished" : "FAILED",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), astCache.getStatistics()));
+            jobOutput.buffer.remove();
+        }
+        return bSuccess;
+    }
+
+    /**
+     * Splits job into arguments separated by whitespace, text enclosed in double or single quotes is part of one argument.
+     * @throws IllegalArgumentException if quote is not closed
+     */
+    static String[] splitArgs(String job) {
+        List<String> args = new ArrayList<>();
+        StringBuilder arg = new StringBuilder();
+        boolean bInArg = false;
+        char quote = 0;
+        for (int i = 0; i < job.length(); i++) {
+            char c = job.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                } else {
+                    arg.append(c);
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+                bInArg = true;
+            } else if (Character.isWhitespace(c)) {
+                if (bInArg) {
+                    args.add(arg.toString());
+                    arg.setLength(0);
+                    bInArg = false;
+                }
+            } else {
+                arg.append(c);
+                bInArg = true;
+            }
+        }
+        if (quote != 0) {
+            throw new IllegalArgumentException(String.format("Missing closing quote %c in job", quote));
+        }
+        if (bInArg) {
+            args.add(arg.toString());
+        }
+        return args.toArray(new String[0]);
+    }
+
+    /**
+     * @return canonical path of base directory of job (-bd / --baseDir), jobs without it share the current directory
+     */
+    static String getBaseDir(String[] args) {
+        String baseDir = "";
+        for (int i = 0; i < args.length; i++) {
+            if ((args[i].equals("-bd") || args[i].equals("--baseDir")) && i + 1 < args.length) {
+                baseDir = args[i + 1];
+            } else if (args[i].startsWith("--baseDir=")) {
+                baseDir = args[i].substring("--baseDir=".length());
+            }
+        }
+        try {
+            return new File(baseDir).getCanonicalPath();
+        } catch (IOException e) {
+            return new File(baseDir).getAbsolutePath();
+        }
+    }
+
+    private void start() {
+        PrintStream captured = new PrintStream(jobOutput, true);
+        System.setOut(captured);
+        System.setErr(captured);
+        Parser.setAstCache(astCache);
+    }
+
+    private void stop() throws InterruptedException {
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        Parser.setAstCache(null);
+        System.setOut(console);
+        System.setErr(consoleErr);
+        console.println("INFO: JCProfiler daemon stopped (" + astCache.getStatistics() + ")");
+    }
+}
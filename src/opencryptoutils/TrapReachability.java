@@ -0,0 +1,259 @@
+package opencryptoutils;
+
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.body.CallableDeclaration;
+import com.github.javaparser.ast.body.FieldDeclaration;
+import com.github.javaparser.ast.body.TypeDeclaration;
+import com.github.javaparser.ast.body.VariableDeclarator;
+import com.github.javaparser.ast.expr.Expression;
+import com.github.javaparser.ast.expr.FieldAccessExpr;
+import com.github.javaparser.ast.expr.LambdaExpr;
+import com.github.javaparser.ast.expr.MethodCallExpr;
+import com.github.javaparser.ast.expr.ObjectCreationExpr;
+import com.github.javaparser.ast.expr.UnaryExpr;
+import com.github.javaparser.ast.nodeTypes.NodeWithStatements;
+import com.github.javaparser.ast.stmt.CatchClause;
+import com.github.javaparser.ast.stmt.ForStmt;
+import com.github.javaparser.ast.stmt.ForEachStmt;
+import com.github.javaparser.ast.stmt.IfStmt;
+import com.github.javaparser.ast.stmt.Statement;
+import com.github.javaparser.ast.stmt.SwitchEntryStmt;
+import com.github.javaparser.ast.stmt.SwitchStmt;
+import com.github.javaparser.ast.stmt.WhileStmt;
+import opencryptoutils.CallGraph.MethodNode;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Static (AST level) check whether traps can be reached by trigger command before any card time is spent.
+ * Handler of trigger command is the case of switch on INS in process() with label equal to trigger INS
+ * (all cases if INS is not known). Trap is
+ *   DEAD         - in method not reachable from handler (call graph), in other case of the switch
+ *                  or guarded by constant false condition,
+ *   AFTER_RETURN - placed after statement which may return or throw (incl. ISOException.throwIt()),
+ *   CONDITIONAL  - inside if, switch, loop (body of do-while is executed always) or catch,
+ *   REACHABLE    - executed whenever its method is executed.
+ * Analysis is intra-procedural, conditions of call sites of trap's method are not considered.
+ */
+public class TrapReachability {
+    public enum Reachability {
+        REACHABLE,
+        CONDITIONAL,
+        AFTER_RETURN,
+        DEAD
+    }
+
+    private final CallGraph graph;
+    private final HashMap<String, Expression> constants = new HashMap<>(); // static final field -> initializer
+    private final HashSet<SwitchEntryStmt> handlers = new HashSet<>();
+    private final HashSet<SwitchEntryStmt> otherEntries = new HashSet<>();
+    private Set<MethodNode> reachableMethods = new HashSet<>();
+    private String handlerDescription = null;
+
+    /**
+     * @param units transformed applet files (file name -> compilation unit)
+     * @param triggerIns INS of trigger command, null if not known (all INS handlers are considered)
+     */
+    public TrapReachability(Map<String, CompilationUnit> units, Byte triggerIns) {
+        graph = new CallGraph(units);
+        for (CompilationUnit cu : units.values()) {
+            for (FieldDeclaration field : cu.findAll(FieldDeclaration.class)) {
+                if (field.isFinal() && field.isStatic()) {
+                    for (VariableDeclarator variable : field.getVariables()) {
+                        variable.getInitializer().ifPresent(init -> constants.put(variable.getNameAsString(), init));
+                    }
+                }
+            }
+        }
+        findHandlers(triggerIns);
+    }
+
+    /**
+     * @return description of trigger handler (case labels), null if not found
+     */
+    public String getHandlerDescription() {
+        return handlerDescription;
+    }
+
+    private void findHandlers(Byte triggerIns) {
+        ArrayList<String> labels = new ArrayList<>();
+        for (MethodNode process : graph.getMethods("process")) {
+            for (SwitchStmt switchStmt : process.declaration.findAll(SwitchStmt.class)) {
+                if (!switchStmt.getSelector().toString().contains("OFFSET_INS")) {
+                    continue;
+                }
+                boolean bFallThrough = false;
+                for (SwitchEntryStmt entry : switchStmt.getEntries()) {
+                    Integer label = entry.getLabel().map(this::evaluateInt).orElse(null);
+                    boolean bHandler = bFallThrough || triggerIns == null || (label != null && (byte) (int) label == triggerIns);
+                    if (bHandler) {
+                        handlers.add(entry);
+                        labels.add(entry.getLabel().map(Object::toString).orElse("default"));
+                    } else {
+                        otherEntries.add(entry);
+                    }
+                    List<Statement> statements = entry.getStatements();
+                    bFallThrough = bHandler && triggerIns != null && (statements.isEmpty() || Parser.canCompleteNormally(statements.get(statements.size() - 1)));
+                }
+            }
+        }
+        if (handlers.isEmpty()) {
+            return;
+        }
+        handlerDescription = (triggerIns != null) ? String.join(", ", labels) : "any INS";
+        ArrayList<MethodNode> roots = new ArrayList<>();
+        for (SwitchEntryStmt handler : handlers) {
+            for (Expression call : handler.findAll(Expression.class)) {
+                if (call instanceof MethodCallExpr || call instanceof ObjectCreationExpr) {
+                    roots.addAll(graph.getCallTargets(call));
+                }
+            }
+        }
+        reachableMethods = graph.getReachable(roots);
+    }
+
+    private Integer evaluateInt(Expression expr) {
+        if (expr.isCastExpr()) {
+            return evaluateInt(expr.asCastExpr().getExpression());
+        } else if (expr.isEnclosedExpr()) {
+            return evaluateInt(expr.asEnclosedExpr().getInner());
+        } else if (expr.isIntegerLiteralExpr()) {
+            String literal = expr.asIntegerLiteralExpr().getValue().toLowerCase(Locale.ROOT);
+            return literal.startsWith("0x") ? Integer.parseInt(literal.substring(2), 16) : Integer.parseInt(literal);
+        } else if (expr.isNameExpr() || expr.isFieldAccessExpr()) {
+            String name = expr.isNameExpr() ? expr.asNameExpr().getNameAsString() : expr.asFieldAccessExpr().getNameAsString();
+            Expression init = constants.get(name);
+            return (init != null && init != expr) ? evaluateInt(init) : null;
+        }
+        return null;
+    }
+
+    /**
+     * @return value of constant boolean expression (literal, static final field, negation), null if not constant
+     */
+    private Boolean evaluateBoolean(Expression expr) {
+        if (expr.isBooleanLiteralExpr()) {
+            return expr.asBooleanLiteralExpr().getValue();
+        } else if (expr.isEnclosedExpr()) {
+            return evaluateBoolean(expr.asEnclosedExpr().getInner());
+        } else if (expr.isUnaryExpr() && expr.asUnaryExpr().getOperator() == UnaryExpr.Operator.LOGICAL_COMPLEMENT) {
+            Boolean value = evaluateBoolean(expr.asUnaryExpr().getExpression());
+            return (value != null) ? !value : null;
+        } else if (expr.isNameExpr() || expr.isFieldAccessExpr()) {
+            String name = expr.isNameExpr() ? expr.asNameExpr().getNameAsString() : expr.asFieldAccessExpr().getNameAsString();
+            Expression init = constants.get(name);
+            return (init != null && init != expr) ? evaluateBoolean(init) : null;
+        }
+        return null;
+    }
+
+    /**
+     * @return reachability of every numbered trap found in applet files (trap name -> reachability),
+     * empty if handler of trigger command is not found
+     */
+    public Map<String, Reachability> analyze() {
+        HashMap<String, Reachability> result = new HashMap<>();
+        if (handlers.isEmpty()) {
+            return result;
+        }
+        for (MethodNode method : graph.getMethods()) {
+            for (MethodCallExpr call : method.declaration.findAll(MethodCallExpr.class)) {
+                if (DrillDown.isTrap(call) && graph.getEnclosingMethod(call) == method) {
+                    result.put(((FieldAccessExpr) call.getArgument(0)).getNameAsString(), analyze(call, method));
+                }
+            }
+        }
+        return result;
+    }
+
+    private Reachability analyze(MethodCallExpr trap, MethodNode method) {
+        boolean bInProcess = method.name.equals("process");
+        if (!bInProcess && !reachableMethods.contains(method)) {
+            return Reachability.DEAD;
+        }
+        Reachability reachability = Reachability.REACHABLE;
+        Node child = trap.findAncestor(Statement.class).orElse(null);
+        for (Node parent = child.getParentNode().orElse(null); parent != null && !(parent instanceof CallableDeclaration); child = parent, parent = parent.getParentNode().orElse(null)) {
+            if (parent instanceof LambdaExpr || parent instanceof TypeDeclaration || parent instanceof ObjectCreationExpr) {
+                return Reachability.CONDITIONAL; // executed only when lambda (anonymous class) is invoked
+            }
+            if (parent instanceof SwitchEntryStmt && bInProcess && (handlers.contains(parent) || otherEntries.contains(parent))) {
+                if (otherEntries.contains(parent)) {
+                    return Reachability.DEAD; // handler of other command
+                }
+                return max(reachability, precededByExit((SwitchEntryStmt) parent, child));
+            }
+            if (parent instanceof IfStmt) {
+                IfStmt ifStmt = (IfStmt) parent;
+                Boolean condition = evaluateBoolean(ifStmt.getCondition());
+                boolean bThen = (child == ifStmt.getThenStmt());
+                if (condition != null && condition != bThen) {
+                    return Reachability.DEAD;
+                }
+                reachability = max(reachability, (condition == null) ? Reachability.CONDITIONAL : Reachability.REACHABLE);
+            } else if (parent instanceof WhileStmt || parent instanceof ForStmt) {
+                Expression condition = (parent instanceof WhileStmt) ? ((WhileStmt) parent).getCondition() : ((ForStmt) parent).getCompare().orElse(null);
+                Boolean value = (condition != null) ? evaluateBoolean(condition) : Boolean.TRUE;
+                if (Boolean.FALSE.equals(value)) {
+                    return Reachability.DEAD;
+                }
+                reachability = max(reachability, Boolean.TRUE.equals(value) ? Reachability.REACHABLE : Reachability.CONDITIONAL);
+            } else if (parent instanceof ForEachStmt || parent instanceof SwitchEntryStmt || parent instanceof CatchClause) {
+                reachability = max(reachability, Reachability.CONDITIONAL);
+            }
+            if (parent instanceof NodeWithStatements && child instanceof Statement) {
+                reachability = max(reachability, precededByExit((NodeWithStatements<?>) parent, child));
+            }
+        }
+        return reachability;
+    }
+
+    /**
+     * @return AFTER_RETURN if any statement preceding child in container may return or throw
+     */
+    private Reachability precededByExit(NodeWithStatements<?> container, Node child) {
+        for (Statement sibling : container.getStatements()) {
+            if (sibling == child) {
+                break;
+            }
+            if (mayExit(sibling)) {
+                return Reachability.AFTER_RETURN;
+            }
+        }
+        return Reachability.REACHABLE;
+    }
+
+    private static boolean mayExit(Statement statement) {
+        for (Node node : statement.findAll(Node.class)) {
+            boolean bExit = (node instanceof Statement && (((Statement) node).isReturnStmt() || ((Statement) node).isThrowStmt()))
+                    || (node instanceof MethodCallExpr && ((MethodCallExpr) node).getNameAsString().equals("throwIt"));
+            if (bExit && !isInNestedBody(node, statement)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if node is inside lambda or anonymous class declared within statement (return does not leave method)
+     */
+    private static boolean isInNestedBody(Node node, Statement statement) {
+        for (Node current = node.getParentNode().orElse(null); current != null && current != statement; current = current.getParentNode().orElse(null)) {
+            if (current instanceof LambdaExpr || current instanceof TypeDeclaration
+                    || (current instanceof ObjectCreationExpr && ((ObjectCreationExpr) current).getAnonymousClassBody().isPresent())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Reachability max(Reachability a, Reachability b) {
+        return (a.compareTo(b) >= 0) ? a : b;
+    }
+}
@@ -0,0 +1,140 @@
+package opencryptoutils;
+
+import com.github.javaparser.ast.stmt.Statement;
+import opencryptoutils.CallGraph.MethodNode;
+import opencryptoutils.DrillDown.Segment;
+import opencryptoutils.PerfCodeGenerator.Refinement;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+/**
+ * Closed-loop profiling: profiler is generated, measured by external command (e.g., script converting
+ * and uploading applet and running JCProfiler_client, or client running with --simulator) and segments
+ * taking more than given part of time of their trap family are split by finer traps. Segment
+ * consisting of single statement is refined by automatic traps in applet methods it calls.
+ * Loop stops when no hot segment can be refined further (statement granularity) or after maxIterations.
+ */
+public class Zoom {
+    public final static int DEFAULT_ITERATIONS = 5;
+
+    private final PerfCodeGenerator gen;
+    private final String measureCommand;
+    private final double hotPercent;
+    private final int maxIterations;
+
+    /**
+     * @param measureCommand shell command measuring generated profiler, executed in base directory,
+     * it must produce new TRAP_RAW_*.csv (anywhere under base directory)
+     * @param hotPercent segments above this part of total time of their family (percents) are refined
+     */
+    public Zoom(PerfCodeGenerator gen, String measureCommand, double hotPercent, int maxIterations) {
+        this.gen = gen;
+        this.measureCommand = measureCommand;
+        this.hotPercent = hotPercent;
+        this.maxIterations = maxIterations;
+    }
+
+    public void run(PerfCodeConfig baseCfg, String baseDirectory) throws IOException, InterruptedException {
+        for (int iteration = 1; iteration <= maxIterations; iteration++) {
+            System.out.println(String.format("INFO: Zoom iteration %d/%d", iteration, maxIterations));
+            gen.generatePersonalizedProfiler(baseCfg, baseDirectory);
+            File results = measure(baseDirectory);
+            System.out.println(String.format("INFO: Results of iteration %d loaded from '%s'", iteration, results.getPath()));
+
+            DrillDown drillDown = new DrillDown(String.format("%s/target/profiler_applet/", baseDirectory));
+            drillDown.loadResults(results.getPath());
+            drillDown.saveCallTree(String.format("%s/target/%s", baseDirectory, DrillDown.CALL_TREE_FILE));
+            if (!refine(drillDown)) {
+                System.out.println(String.format("INFO: All segments above %.1f%% of time measured at statement granularity, zoom finished", hotPercent));
+                System.out.print(drillDown.formatCallTree());
+                return;
+            }
+        }
+        System.out.println(String.format("INFO: Zoom stopped after %d iterations, last results are not refined", maxIterations));
+    }
+
+    /**
+     * Executes measureCommand and waits for its end.
+     * @return newest TRAP_RAW_*.csv created by the command
+     */
+    File measure(String baseDirectory) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        boolean bWindows = System.getProperty("os.name").toLowerCase(Locale.ROOT).startsWith("windows");
+        List<String> command = bWindows ? Arrays.asList("cmd", "/c", measureCommand) : Arrays.asList("sh", "-c", measureCommand);
+        Process process = new ProcessBuilder(command).directory(new File(baseDirectory.isEmpty() ? "." : baseDirectory)).inheritIO().start();
+        int exitCode = process.waitFor();
+        if (exitCode != 0) {
+            throw new IOException(String.format("Measurement command '%s' failed with exit code %d", measureCommand, exitCode));
+        }
+        File newest = null;
+        try (Stream<Path> files = Files.walk(new File(baseDirectory.isEmpty() ? "." : baseDirectory).toPath())) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                File file = path.toFile();
+                if (file.getName().startsWith("TRAP_RAW_") && file.getName().endsWith(".csv") && file.lastModified() >= start - 1000 // coarse file time
+                        && (newest == null || file.lastModified() > newest.lastModified())) {
+                    newest = file;
+                }
+            }
+        }
+        if (newest == null) {
+            throw new IOException(String.format("Measurement command '%s' produced no TRAP_RAW_*.csv results", measureCommand));
+        }
+        return newest;
+    }
+
+    /**
+     * Splits hot segments by traps before every statement inside of them, or instruments methods
+     * called by single-statement segments.
+     * @return true if any trap was added
+     */
+    boolean refine(DrillDown drillDown) {
+        List<Segment> hotSegments = drillDown.getHotSegments(hotPercent);
+        int numRefined = 0;
+        int numDrilled = 0;
+        for (Segment segment : hotSegments) {
+            MethodNode method = drillDown.getMethod(segment);
+            if (method == null || method.name.equals("process")) {
+                continue; // segment before first trap or in dispatcher
+            }
+            List<Statement> methodStatements = Parser.getStatements(method.declaration);
+            ArrayList<Integer> ordinals = new ArrayList<>();
+            for (Statement statement : drillDown.getStatements(segment)) {
+                if (Parser.canInsertTrapBefore(statement)) {
+                    for (int i = 0; i < methodStatements.size(); i++) {
+                        if (methodStatements.get(i) == statement) {
+                            ordinals.add(i);
+                        }
+                    }
+                }
+            }
+            if (!ordinals.isEmpty()) {
+                Refinement refinement = gen.refinements.computeIfAbsent(method.getSignature(), k -> new Refinement(drillDown.getFamily(segment)));
+                if (refinement.statements.addAll(ordinals)) {
+                    numRefined++;
+                }
+                continue;
+            }
+            // single statement: go into applet methods it calls
+            List<String> callees = drillDown.selectCallees(Arrays.asList(segment));
+            LinkedHashSet<String> selection = new LinkedHashSet<>();
+            if (gen.autoTrapMethods != null) {
+                selection.addAll(Arrays.asList(gen.autoTrapMethods.split(",")));
+            }
+            if (selection.addAll(callees)) {
+                gen.autoTrapMethods = String.join(",", selection);
+                numDrilled++;
+            }
+        }
+        System.out.println(String.format("INFO: %d hot segments (> %.1f%% of family time), %d split by finer traps, %d refined in called methods",
+                hotSegments.size(), hotPercent, numRefined, numDrilled));
+        return numRefined + numDrilled > 0;
+    }
+}